@@ -0,0 +1,103 @@
+package com.spoon.backgroundfileupload;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tunes the number of concurrent uploads with an additive increase / multiplicative
+ * decrease loop.
+ *
+ * Bytes sent and uploads finished are accumulated over a sampling window. When at
+ * least a quarter of the uploads finished in a window failed, the limit is halved.
+ * Otherwise, when every slot is busy and uploads are waiting, one more slot is tried;
+ * the extra slot is kept only if aggregate throughput grew during the next window,
+ * and probing pauses for a few windows after an unsuccessful try.
+ */
+public class AdaptiveConcurrency {
+    private static final double MIN_THROUGHPUT_GAIN = 1.05;
+    private static final int HOLD_WINDOWS_AFTER_FAILED_PROBE = 6;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final ConcurrentHashMap<String, Long> uploadedBytes = new ConcurrentHashMap<>();
+    private final AtomicLong windowBytes = new AtomicLong();
+    private final AtomicInteger windowSuccesses = new AtomicInteger();
+    private final AtomicInteger windowErrors = new AtomicInteger();
+    private int limit;
+    private double previousThroughput = 0;
+    private boolean probing = false;
+    private int holdWindows = 0;
+
+    public AdaptiveConcurrency(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public void onProgress(String uploadId, long bytes) {
+        Long previous = uploadedBytes.put(uploadId, bytes);
+        if (previous != null && bytes > previous) {
+            windowBytes.addAndGet(bytes - previous);
+        }
+    }
+
+    public void onSuccess(String uploadId) {
+        uploadedBytes.remove(uploadId);
+        windowSuccesses.incrementAndGet();
+    }
+
+    public void onError(String uploadId) {
+        uploadedBytes.remove(uploadId);
+        windowErrors.incrementAndGet();
+    }
+
+    /**
+     * Stops following an upload that ended without counting as a success or an error:
+     * removed, cancelled, or returned to the store.
+     */
+    public void forget(String uploadId) {
+        uploadedBytes.remove(uploadId);
+    }
+
+    /**
+     * Closes the current window and returns the limit to use for the next one.
+     *
+     * @param windowMillis duration of the window that just ended
+     * @param saturated    whether every slot was busy with uploads still waiting
+     */
+    public synchronized int sample(long windowMillis, boolean saturated) {
+        long bytes = windowBytes.getAndSet(0);
+        int successes = windowSuccesses.getAndSet(0);
+        int errors = windowErrors.getAndSet(0);
+        double throughput = bytes * 1000.0 / windowMillis;
+
+        if (errors > 0 && errors * 4 >= successes + errors) {
+            limit = Math.max(minLimit, limit / 2);
+            probing = false;
+            holdWindows = HOLD_WINDOWS_AFTER_FAILED_PROBE;
+        } else if (probing) {
+            probing = false;
+            if (throughput < previousThroughput * MIN_THROUGHPUT_GAIN) {
+                limit = Math.max(minLimit, limit - 1);
+                holdWindows = HOLD_WINDOWS_AFTER_FAILED_PROBE;
+            }
+        } else if (holdWindows > 0) {
+            holdWindows--;
+        } else if (saturated && limit < maxLimit && bytes > 0) {
+            limit++;
+            probing = true;
+        }
+
+        previousThroughput = throughput;
+        return limit;
+    }
+}
@@ -0,0 +1,180 @@
+package com.spoon.backgroundfileupload;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * OkHttp interceptor limiting the rate at which request bodies are written, with a
+ * token bucket shared by all uploads and an optional one per request.
+ *
+ * The global rate can be changed at any time and applies to running uploads. A
+ * request can carry its own rate in the RATE_HEADER request header, which is removed
+ * before the request goes out. Bodies are written in small slices; when a bucket runs
+ * out of tokens the writing thread sleeps until enough have been refilled, so the
+ * connection stays open without spinning. As it sits after RequestCompression, the
+ * limit applies to the bytes actually sent.
+ */
+public class BandwidthLimiter implements Interceptor {
+    public static final String RATE_HEADER = "X-Background-Upload-Rate";
+    private static final int MAX_SLICE_SIZE = 8192;
+
+    private final TokenBucket globalBucket;
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.globalBucket = new TokenBucket(bytesPerSecond);
+    }
+
+    /**
+     * @param bytesPerSecond new global limit, 0 or less removes it
+     */
+    public void setRate(long bytesPerSecond) {
+        globalBucket.setRate(bytesPerSecond);
+        ManagerService.logMessage(String.format("eventLabel='Uploader bandwidth limit changed' bytes_per_second=%d", Math.max(0, bytesPerSecond)));
+    }
+
+    public long getRate() {
+        return globalBucket.getRate();
+    }
+
+    @Override
+    public okhttp3.Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String rate = request.header(RATE_HEADER);
+        long requestRate = 0;
+        if (rate != null) {
+            try {
+                requestRate = Long.parseLong(rate);
+            } catch (NumberFormatException exception) {
+                requestRate = 0;
+            }
+            request = request.newBuilder().removeHeader(RATE_HEADER).build();
+        }
+        if (request.body() == null) {
+            return chain.proceed(request);
+        }
+
+        // always wrapped, so that a global limit set later applies to this upload too
+        return chain.proceed(request.newBuilder()
+                .method(request.method(), new ThrottledBody(request.body(), requestRate > 0 ? new TokenBucket(requestRate) : null))
+                .build());
+    }
+
+    private class ThrottledBody extends RequestBody {
+        private final RequestBody body;
+        private final TokenBucket requestBucket;
+
+        ThrottledBody(RequestBody body, TokenBucket requestBucket) {
+            this.body = body;
+            this.requestBucket = requestBucket;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return body.contentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink throttled = Okio.buffer(new ThrottledSink(sink, requestBucket));
+            body.writeTo(throttled);
+            throttled.emit();
+        }
+    }
+
+    private class ThrottledSink extends ForwardingSink {
+        private final TokenBucket requestBucket;
+
+        ThrottledSink(Sink delegate, TokenBucket requestBucket) {
+            super(delegate);
+            this.requestBucket = requestBucket;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            while (byteCount > 0) {
+                long slice = Math.min(byteCount, Math.min(sliceSize(globalBucket), sliceSize(requestBucket)));
+                long waitNanos = globalBucket.reserve(slice);
+                if (requestBucket != null) {
+                    waitNanos = Math.max(waitNanos, requestBucket.reserve(slice));
+                }
+                if (waitNanos > 0) {
+                    try {
+                        Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("upload interrupted while throttled");
+                    }
+                }
+                super.write(source, slice);
+                byteCount -= slice;
+            }
+        }
+    }
+
+    // about a tenth of a second of transfer, so that a sleep never lasts much longer
+    private static long sliceSize(TokenBucket bucket) {
+        long rate = bucket != null ? bucket.getRate() : 0;
+        return rate > 0 ? Math.max(1, Math.min(MAX_SLICE_SIZE, rate / 10)) : MAX_SLICE_SIZE;
+    }
+
+    /**
+     * Tokens are bytes, refilled continuously at the rate and capped to a quarter of a
+     * second of transfer. Reserving more tokens than available leaves the bucket in
+     * debt and returns the time to wait before the reserved bytes may be sent.
+     */
+    static class TokenBucket {
+        private long rate;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = Math.max(0, rate);
+        }
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate) {
+            refill();
+            this.rate = Math.max(0, rate);
+            tokens = Math.min(tokens, capacity());
+        }
+
+        synchronized long reserve(long bytes) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill();
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(capacity(), tokens + (now - refilledAt) * rate / 1e9);
+            }
+            refilledAt = now;
+        }
+
+        private double capacity() {
+            return Math.max(rate / 4.0, MAX_SLICE_SIZE);
+        }
+    }
+}
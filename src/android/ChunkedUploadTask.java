@@ -0,0 +1,476 @@
+package com.spoon.backgroundfileupload;
+
+import android.util.Base64;
+
+import net.gotev.uploadservice.exceptions.UploadError;
+import net.gotev.uploadservice.exceptions.UserCancelledUploadException;
+import net.gotev.uploadservice.network.ServerResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+/**
+ * Uploads a file as a sequence of raw byte-range requests so that an interrupted
+ * transfer can resume from the last offset confirmed by the server.
+ *
+ * Every chunk is sent to the upload url with the Upload-Id, Upload-Offset and
+ * Upload-Length headers. The server answers intermediate chunks with its new
+ * Upload-Offset and the last chunk with the final response. A HEAD request on the
+ * same url returns the offset the server already holds for an upload id.
+ *
+ * With parallelParts above one, the file is instead split into parts of chunkSize bytes
+ * that are sent concurrently with PUT requests carrying Upload-Part and
+ * Upload-Part-Count. Each part confirmed by the server is persisted with its ETag and
+ * retried on its own after a backoff if it fails, then a POST carrying the ETags of all parts asks the
+ * server to assemble the file and its response ends the upload.
+ */
+public class ChunkedUploadTask implements Runnable {
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final int PART_ATTEMPTS = 3;
+    private static final RetryPolicy PART_RETRY_POLICY = new RetryPolicy(PART_ATTEMPTS - 1, 1000, 10000);
+    // waits out the backoff of failed parts, its thread stops when no part is waiting
+    private static final ScheduledThreadPoolExecutor PART_RETRY_TIMER = partRetryTimer();
+    private static final int BUFFER_SIZE = 8192;
+    private static final int HTTP_CONFLICT = 409;
+    private static final int HTTP_NOT_FOUND = 404;
+    // consecutive 409 answers accepted before the upload fails
+    private static final int MAX_OFFSET_RESYNCS = 3;
+
+    public interface Delegate {
+        void onChunkedProgress(String uploadId, long uploadedBytes, long totalBytes);
+
+        void onChunkedSuccess(String uploadId, int statusCode, String body);
+
+        void onChunkedError(String uploadId, Throwable exception);
+    }
+
+    private final OkHttpClient client;
+    private final Delegate delegate;
+    private final String uploadId;
+    private final String serverUrl;
+    private final UploadSource source;
+    private final long chunkSize;
+    private final int parallelParts;
+    private final Map<String, String> headers;
+    private final Map<String, String> parameters;
+    private volatile boolean cancelled = false;
+    private volatile Call currentCall;
+    // ConcurrentHashMap.newKeySet() needs API 24
+    private final Set<Call> partCalls = Collections.newSetFromMap(new ConcurrentHashMap<Call, Boolean>());
+    private int lastReportedPercent = -1;
+
+    public ChunkedUploadTask(OkHttpClient client, Delegate delegate, String uploadId, String serverUrl, UploadSource source, long chunkSize, int parallelParts, Map<String, String> headers, Map<String, String> parameters) {
+        this.client = client;
+        this.delegate = delegate;
+        this.uploadId = uploadId;
+        this.serverUrl = serverUrl;
+        this.source = source;
+        this.chunkSize = chunkSize;
+        this.parallelParts = parallelParts;
+        this.headers = headers;
+        this.parameters = parameters;
+    }
+
+    private static ScheduledThreadPoolExecutor partRetryTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+        timer.setKeepAliveTime(5, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        return timer;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public void cancel() {
+        cancelled = true;
+        Call call = currentCall;
+        if (call != null) {
+            call.cancel();
+        }
+        for (Call partCall : partCalls) {
+            partCall.cancel();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            long totalBytes = source.getLength();
+            if (parallelParts > 1) {
+                new PartsUpload(totalBytes).run();
+                return;
+            }
+            // when the server already holds the whole file, the last byte is sent again to get the final response
+            long offset = Math.min(resolveOffset(PendingUpload.uploadedBytes(uploadId)), Math.max(0, totalBytes - 1));
+            int resyncs = 0;
+
+            while (true) {
+                checkCancelled();
+                long length = Math.min(chunkSize, totalBytes - offset);
+                try (Response response = execute(chunkRequest(offset, length, totalBytes))) {
+                    if (response.code() == HTTP_CONFLICT) {
+                        long serverOffset = readOffset(response, -1);
+                        if (serverOffset < 0 || serverOffset == offset || ++resyncs > MAX_OFFSET_RESYNCS) {
+                            // resending from the same offset would get the same answer
+                            throw new UploadError(serverResponse(response));
+                        }
+                        if (serverOffset >= totalBytes) {
+                            PendingUpload.updateUploadedBytes(uploadId, totalBytes);
+                            delegate.onChunkedSuccess(uploadId, response.code(), response.body() != null ? response.body().string() : "");
+                            return;
+                        }
+                        offset = serverOffset;
+                        ManagerService.logMessage(String.format("eventLabel='Uploader chunk offset mismatch, resuming from server offset' uploadId='%s' offset=%d", uploadId, offset));
+                        PendingUpload.updateUploadedBytes(uploadId, offset);
+                        continue;
+                    }
+                    resyncs = 0;
+                    if (!response.isSuccessful() && response.code() != 308) {
+                        throw new UploadError(serverResponse(response));
+                    }
+
+                    long confirmedOffset = readOffset(response, offset + length);
+                    if (confirmedOffset >= totalBytes) {
+                        PendingUpload.updateUploadedBytes(uploadId, totalBytes);
+                        delegate.onChunkedSuccess(uploadId, response.code(), response.body() != null ? response.body().string() : "");
+                        return;
+                    }
+
+                    offset = confirmedOffset;
+                    PendingUpload.updateUploadedBytes(uploadId, offset);
+                }
+            }
+        } catch (Throwable exception) {
+            delegate.onChunkedError(uploadId, cancelled ? new UserCancelledUploadException() : exception);
+        }
+    }
+
+    private long resolveOffset(long persistedOffset) throws IOException {
+        if (persistedOffset <= 0) {
+            return 0;
+        }
+
+        Request.Builder builder = new Request.Builder().url(serverUrl).head();
+        addHeaders(builder);
+        builder.header("Upload-Id", uploadId);
+
+        try (Response response = execute(builder.build())) {
+            if (response.code() == HTTP_NOT_FOUND) {
+                return 0;
+            }
+            return response.isSuccessful() ? readOffset(response, persistedOffset) : persistedOffset;
+        }
+    }
+
+    private Request chunkRequest(long offset, long length, long totalBytes) {
+        Request.Builder builder = new Request.Builder()
+                .url(serverUrl)
+                .post(new FileRangeBody(offset, length, totalBytes, null));
+        addHeaders(builder);
+        builder.header("Upload-Id", uploadId)
+                .header("Upload-Offset", String.valueOf(offset))
+                .header("Upload-Length", String.valueOf(totalBytes))
+                .header("Content-Range", contentRange(offset, length, totalBytes))
+                .header("Upload-Metadata", uploadMetadata());
+        return builder.build();
+    }
+
+    // an empty file is sent as a single empty request, which has no byte range
+    private static String contentRange(long offset, long length, long totalBytes) {
+        if (length == 0) {
+            return String.format("bytes */%d", totalBytes);
+        }
+        return String.format("bytes %d-%d/%d", offset, offset + length - 1, totalBytes);
+    }
+
+    private void addHeaders(Request.Builder builder) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+    }
+
+    private String uploadMetadata() {
+        StringBuilder metadata = new StringBuilder();
+        metadata.append("filename ").append(encode(source.getName()));
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            metadata.append(',').append(parameter.getKey()).append(' ').append(encode(parameter.getValue()));
+        }
+        return metadata.toString();
+    }
+
+    private static String encode(String value) {
+        return Base64.encodeToString(value.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
+    }
+
+    private static ServerResponse serverResponse(Response response) throws IOException {
+        LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+        for (String name : response.headers().names()) {
+            headers.put(name, response.header(name));
+        }
+        byte[] body = response.body() != null ? response.body().bytes() : new byte[0];
+        return new ServerResponse(response.code(), body, headers);
+    }
+
+    private long readOffset(Response response, long defaultOffset) {
+        String header = response.header("Upload-Offset");
+        if (header == null) {
+            return defaultOffset;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException exception) {
+            return defaultOffset;
+        }
+    }
+
+    private Response execute(Request request) throws IOException {
+        Call call = client.newCall(request);
+        currentCall = call;
+        checkCancelled();
+        return call.execute();
+    }
+
+    private synchronized void reportProgress(long uploadedBytes, long totalBytes) {
+        int percent = (int) (uploadedBytes * 100 / totalBytes);
+        if (percent != lastReportedPercent) {
+            lastReportedPercent = percent;
+            delegate.onChunkedProgress(uploadId, uploadedBytes, totalBytes);
+        }
+    }
+
+    private void checkCancelled() throws IOException {
+        if (cancelled) {
+            throw new IOException("upload cancelled");
+        }
+    }
+
+    /**
+     * Sends the parts of the file, parallelParts at a time, on the dispatcher of the http
+     * client while the upload thread waits, then asks the server to assemble them.
+     */
+    private class PartsUpload {
+        private final long totalBytes;
+        private final int partCount;
+        private final Map<Integer, String> etags;
+        private final AtomicLong uploadedBytes = new AtomicLong();
+        private final Semaphore slots = new Semaphore(parallelParts);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        PartsUpload(long totalBytes) {
+            this.totalBytes = totalBytes;
+            this.partCount = (int) Math.max(1, (totalBytes + chunkSize - 1) / chunkSize);
+            this.etags = new ConcurrentHashMap<>(PendingUpload.completedParts(uploadId));
+            for (Integer part : etags.keySet()) {
+                uploadedBytes.addAndGet(partLength(part));
+            }
+        }
+
+        void run() throws Throwable {
+            if (!etags.isEmpty()) {
+                ManagerService.logMessage(String.format("eventLabel='Uploader resuming parallel upload' uploadId='%s' completed_parts=%d part_count=%d", uploadId, etags.size(), partCount));
+                reportProgress(uploadedBytes.get(), totalBytes);
+            }
+
+            for (int part = 1; part <= partCount && failure.get() == null && !cancelled; part++) {
+                if (etags.containsKey(part)) {
+                    continue;
+                }
+                slots.acquire();
+                sendPart(part, PART_ATTEMPTS);
+            }
+            // every running part releases its slot once it is done
+            slots.acquire(parallelParts);
+
+            Throwable error = failure.get();
+            if (error != null) {
+                throw error;
+            }
+            checkCancelled();
+
+            try (Response response = execute(completionRequest())) {
+                if (!response.isSuccessful()) {
+                    if (response.code() >= 400 && response.code() < 500) {
+                        // the server lost the parts, a later attempt starts over
+                        PendingUpload.forgetParts(uploadId);
+                    }
+                    throw new UploadError(serverResponse(response));
+                }
+                PendingUpload.updateUploadedBytes(uploadId, totalBytes);
+                delegate.onChunkedSuccess(uploadId, response.code(), response.body() != null ? response.body().string() : "");
+            }
+        }
+
+        private long partLength(int part) {
+            long offset = (part - 1) * chunkSize;
+            return Math.max(0, Math.min(chunkSize, totalBytes - offset));
+        }
+
+        private void sendPart(int part, int attemptsLeft) {
+            long offset = (part - 1) * chunkSize;
+            FileRangeBody body = new FileRangeBody(offset, partLength(part), totalBytes, uploadedBytes);
+            Request.Builder builder = new Request.Builder()
+                    .url(serverUrl)
+                    .put(body);
+            addHeaders(builder);
+            builder.header("Upload-Id", uploadId)
+                    .header("Upload-Part", String.valueOf(part))
+                    .header("Upload-Part-Count", String.valueOf(partCount))
+                    .header("Upload-Length", String.valueOf(totalBytes))
+                    .header("Content-Range", contentRange(offset, body.length, totalBytes));
+
+            Call call = client.newCall(builder.build());
+            partCalls.add(call);
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException exception) {
+                    onPartFailed(call, body, part, attemptsLeft, exception);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (Response partResponse = response) {
+                        if (!partResponse.isSuccessful()) {
+                            onPartFailed(call, body, part, attemptsLeft, new UploadError(serverResponse(partResponse)));
+                            return;
+                        }
+                        String etag = partResponse.header("ETag", "");
+                        PendingUpload.recordPart(uploadId, part, etag);
+                        etags.put(part, etag);
+                        partCalls.remove(call);
+                        slots.release();
+                    } catch (IOException | RuntimeException exception) {
+                        // the slot must be given back whatever failed, or the upload thread waits forever
+                        onPartFailed(call, body, part, attemptsLeft, exception);
+                    }
+                }
+            });
+        }
+
+        private void onPartFailed(Call call, FileRangeBody body, int part, int attemptsLeft, Throwable exception) {
+            partCalls.remove(call);
+            uploadedBytes.addAndGet(-body.written);
+            long retryDelay = cancelled || failure.get() != null ? RetryPolicy.NO_RETRY : PART_RETRY_POLICY.retryDelay(exception, PART_ATTEMPTS - attemptsLeft);
+            if (retryDelay != RetryPolicy.NO_RETRY) {
+                ManagerService.logMessage(String.format("eventLabel='Uploader part will be retried' uploadId='%s' part=%d delay_ms=%d error='%s'", uploadId, part, retryDelay, exception.getMessage()));
+                // the retry keeps the slot of the failed attempt
+                PART_RETRY_TIMER.schedule(() -> retryPart(part, attemptsLeft - 1), retryDelay, TimeUnit.MILLISECONDS);
+                return;
+            }
+            fail(exception);
+        }
+
+        private void retryPart(int part, int attemptsLeft) {
+            if (cancelled || failure.get() != null) {
+                slots.release();
+                return;
+            }
+            try {
+                sendPart(part, attemptsLeft);
+            } catch (RuntimeException exception) {
+                fail(exception);
+            }
+        }
+
+        private void fail(Throwable exception) {
+            if (failure.compareAndSet(null, exception)) {
+                for (Call partCall : partCalls) {
+                    partCall.cancel();
+                }
+            }
+            slots.release();
+        }
+
+        private Request completionRequest() throws JSONException {
+            JSONArray parts = new JSONArray();
+            for (int part = 1; part <= partCount; part++) {
+                parts.put(new JSONObject().put("part", part).put("etag", etags.get(part)));
+            }
+            Request.Builder builder = new Request.Builder()
+                    .url(serverUrl)
+                    .post(RequestBody.create(new JSONObject().put("parts", parts).toString(), JSON));
+            addHeaders(builder);
+            builder.header("Upload-Id", uploadId)
+                    .header("Upload-Part-Count", String.valueOf(partCount))
+                    .header("Upload-Length", String.valueOf(totalBytes))
+                    .header("Upload-Metadata", uploadMetadata());
+            return builder.build();
+        }
+    }
+
+    /**
+     * Streams a byte range of the file. Parts of a parallel upload add the bytes they
+     * write to a shared counter, from which the aggregate progress is reported.
+     */
+    private class FileRangeBody extends RequestBody {
+        private final long offset;
+        private final long length;
+        private final long totalBytes;
+        private final AtomicLong sharedCounter;
+        private volatile long written;
+
+        FileRangeBody(long offset, long length, long totalBytes, AtomicLong sharedCounter) {
+            this.offset = offset;
+            this.length = length;
+            this.totalBytes = totalBytes;
+            this.sharedCounter = sharedCounter;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return OCTET_STREAM;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            if (sharedCounter != null) {
+                // the body is written again when the http client retries the request
+                sharedCounter.addAndGet(-written);
+            }
+            written = 0;
+            try (InputStream input = source.open(offset)) {
+                while (written < length) {
+                    int read = input.read(buffer, 0, (int) Math.min(buffer.length, length - written));
+                    if (read == -1) {
+                        throw new EOFException("upload source is shorter than expected");
+                    }
+                    sink.write(buffer, 0, read);
+                    written += read;
+                    reportProgress(sharedCounter != null ? sharedCounter.addAndGet(read) : offset + written, totalBytes);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.spoon.backgroundfileupload;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Skips uploads of content that was already sent with the same request: same url,
+ * method, upload mode, file key, headers and parameters.
+ *
+ * The SHA-256 of the file is computed on a background thread and looked up in the
+ * persisted UploadedContent index. On a hit the cached server response is handed
+ * back and the upload never starts; otherwise the hash is added to the spec so
+ * that it is sent in the HASH_HEADER header, letting the server run its own check,
+ * and the response is recorded once the upload succeeds.
+ */
+public class ContentDeduplicator {
+    public interface Callback {
+        void onUploadNeeded(UploadSpec spec);
+
+        void onAlreadyUploaded(String uploadId, int statusCode, String serverResponse);
+    }
+
+    public static final String HASH_HEADER = "Upload-Content-Sha256";
+    public static final String HASH_KEY = "contentHash";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Context context;
+    private final int maxEntries;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<String, UploadedContent> pendingContents = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    public ContentDeduplicator(Context context, int maxEntries) {
+        this.context = context;
+        this.maxEntries = maxEntries;
+        this.executor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static boolean isRequested(UploadSpec spec) {
+        return spec.deduplicate && spec.contentHash == null;
+    }
+
+    public void check(UploadSpec spec, Callback callback) {
+        pendingCount.incrementAndGet();
+        executor.execute(() -> {
+            String uploadId = spec.id;
+            String serverUrl = spec.serverUrl;
+            String hash;
+            try {
+                hash = sha256(UploadSource.from(context, spec.filePath));
+            } catch (IOException exception) {
+                // let the upload report the unreadable file
+                ManagerService.logMessage(String.format("eventLabel='Uploader could not hash file' uploadId='%s' error='%s'", uploadId, exception.getMessage()));
+                pendingCount.decrementAndGet();
+                callback.onUploadNeeded(spec);
+                return;
+            }
+
+            // the upload is handed to a callback below, it is counted there from now on
+            pendingCount.decrementAndGet();
+            String requestKey = requestKey(spec);
+            UploadedContent uploaded = UploadedContent.find(hash, serverUrl, requestKey);
+            if (uploaded != null) {
+                ManagerService.logMessage(String.format("eventLabel='Uploader content already uploaded, skipping upload' uploadId='%s' hash='%s'", uploadId, hash));
+                callback.onAlreadyUploaded(uploadId, uploaded.statusCode, uploaded.serverResponse);
+                return;
+            }
+
+            pendingContents.put(uploadId, new UploadedContent(hash, serverUrl, requestKey, 0, null));
+            callback.onUploadNeeded(spec.withContentHash(hash));
+        });
+    }
+
+    /**
+     * Number of uploads queued or being hashed. They count as waiting uploads, so that a
+     * large batch of deduplicated uploads stays within maxWaitingUploads.
+     */
+    public int pendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Remembers the response of a successful upload so that the same content is not sent again.
+     */
+    public void onUploaded(String uploadId, int statusCode, String serverResponse) {
+        UploadedContent content = pendingContents.remove(uploadId);
+        if (content == null) {
+            return;
+        }
+        executor.execute(() -> UploadedContent.record(content, statusCode, serverResponse, maxEntries));
+    }
+
+    public void forget(String uploadId) {
+        pendingContents.remove(uploadId);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * SHA-256 of everything but the url and the file that makes up the request, so that a
+     * response is only reused for the same request. Header names are compared ignoring case
+     * and the order of headers and parameters does not matter.
+     */
+    static String requestKey(UploadSpec spec) {
+        TreeMap<String, String> headers = new TreeMap<>();
+        for (Map.Entry<String, String> header : spec.headers.entrySet()) {
+            headers.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+        }
+        StringBuilder request = new StringBuilder()
+                .append(spec.requestMethod).append('\n')
+                .append(spec.mode).append('\n')
+                .append(spec.fileKey).append('\n');
+        appendEntries(request, headers);
+        appendEntries(request, new TreeMap<>(spec.parameters));
+
+        MessageDigest digest = newDigest();
+        return hex(digest.digest(request.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // lengths are written first so that no two different maps give the same string
+    private static void appendEntries(StringBuilder request, TreeMap<String, String> entries) {
+        request.append(entries.size()).append('\n');
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            request.append(entry.getKey().length()).append(':').append(entry.getKey())
+                    .append(entry.getValue().length()).append(':').append(entry.getValue()).append('\n');
+        }
+    }
+
+    private static String sha256(UploadSource source) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream stream = source.open(0)) {
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            // every Android version provides SHA-256
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -36,12 +36,22 @@ public class FileTransferBackground extends CordovaPlugin implements ServiceConn
 
             cordova.getThreadPool().execute(() -> {
                 try {
+                    if (action.equalsIgnoreCase("getStats")) {
+                        callbackContext.success(managerService.getStats());
+                        return;
+                    }
                     if (action.equalsIgnoreCase("removeUpload")) {
                         managerService.removeUpload(args.get(0).toString());
                     } else if (action.equalsIgnoreCase("acknowledgeEvent")) {
                         managerService.acknowledgeEvent(args.getString(0));
+                    } else if (action.equalsIgnoreCase("acknowledgeEvents")) {
+                        managerService.acknowledgeEvents(args.getJSONArray(0));
                     } else if (action.equalsIgnoreCase("startUpload")) {
                         managerService.addUpload((JSONObject) args.get(0));
+                    } else if (action.equalsIgnoreCase("startUploads")) {
+                        managerService.addUploads(args.getJSONArray(0));
+                    } else if (action.equalsIgnoreCase("setBandwidthLimit")) {
+                        managerService.setBandwidthLimit(args.getLong(0));
                     }
                     callbackContext.success();
                 } catch (Exception exception) {
@@ -111,4 +121,11 @@ public class FileTransferBackground extends CordovaPlugin implements ServiceConn
         result.setKeepCallback(true);
         this.uploadCallback.sendPluginResult(result);
     }
+
+    @Override
+    public void callback(JSONArray events) {
+        PluginResult result = new PluginResult(PluginResult.Status.OK, events);
+        result.setKeepCallback(true);
+        this.uploadCallback.sendPluginResult(result);
+    }
 }
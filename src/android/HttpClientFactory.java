@@ -0,0 +1,118 @@
+package com.spoon.backgroundfileupload;
+
+import net.gotev.uploadservice.UploadServiceConfig;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Builds the OkHttpClient shared by every upload, tuned from the init options:
+ * connectionPoolSize, connectionKeepAlive, http2, connectTimeout, readTimeout,
+ * writeTimeout and writeBufferSize.
+ *
+ * As a single client serves the whole queue, uploads to the same host reuse the pooled
+ * connections, and with HTTP/2 parallel uploads share one connection and TLS handshake.
+ */
+public class HttpClientFactory {
+    private static final long DEFAULT_CONNECTION_KEEP_ALIVE = 300000;
+    private static final long DEFAULT_CONNECT_TIMEOUT = 15000;
+    private static final long DEFAULT_READ_TIMEOUT = 30000;
+    private static final long DEFAULT_WRITE_TIMEOUT = 30000;
+
+    /**
+     * @param parallelUploads largest number of uploads that can run at once, the
+     *                        pool keeps at least that many idle connections by default
+     * @param bandwidthLimiter applied after compression, so that it limits the bytes sent
+     */
+    public static OkHttpClient create(JSONObject settings, int parallelUploads, BandwidthLimiter bandwidthLimiter) {
+        int connectionPoolSize = Math.max(1, settings.optInt("connectionPoolSize", Math.max(5, parallelUploads)));
+        long connectionKeepAlive = Math.max(1, settings.optLong("connectionKeepAlive", DEFAULT_CONNECTION_KEEP_ALIVE));
+        int writeBufferSize = settings.optInt("writeBufferSize", 0);
+
+        // only the parts of parallel uploads go through the dispatcher, their number is
+        // already bounded by parallelParts so the per host limit of 5 is lifted
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(dispatcher.getMaxRequests());
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(connectionPoolSize, connectionKeepAlive, TimeUnit.MILLISECONDS))
+                .connectTimeout(settings.optLong("connectTimeout", DEFAULT_CONNECT_TIMEOUT), TimeUnit.MILLISECONDS)
+                .readTimeout(settings.optLong("readTimeout", DEFAULT_READ_TIMEOUT), TimeUnit.MILLISECONDS)
+                .writeTimeout(settings.optLong("writeTimeout", DEFAULT_WRITE_TIMEOUT), TimeUnit.MILLISECONDS)
+                .addInterceptor(new RequestCompression())
+                .addInterceptor(bandwidthLimiter);
+
+        // HTTP/2 is negotiated through ALPN on TLS connections only, plain http stays on HTTP/1.1
+        if (settings.optBoolean("http2", true)) {
+            builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        } else {
+            builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        }
+
+        if (writeBufferSize > 0) {
+            builder.socketFactory(new SendBufferSocketFactory(SocketFactory.getDefault(), writeBufferSize));
+            UploadServiceConfig.setBufferSizeBytes(writeBufferSize);
+        }
+
+        ManagerService.logMessage(String.format("eventLabel='Uploader http client configured' pool_size=%d keep_alive_ms=%d write_buffer_size=%d", connectionPoolSize, connectionKeepAlive, writeBufferSize));
+        return builder.build();
+    }
+
+    /**
+     * Sets the send buffer of every socket created for the uploads. TLS sockets are
+     * layered on top of these, so https connections get the same buffer.
+     */
+    private static class SendBufferSocketFactory extends SocketFactory {
+        private final SocketFactory delegate;
+        private final int sendBufferSize;
+
+        SendBufferSocketFactory(SocketFactory delegate, int sendBufferSize) {
+            this.delegate = delegate;
+            this.sendBufferSize = sendBufferSize;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return configure(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return configure(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return configure(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return configure(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return configure(delegate.createSocket(address, port, localAddress, localPort));
+        }
+
+        private Socket configure(Socket socket) throws IOException {
+            socket.setSendBufferSize(sendBufferSize);
+            return socket;
+        }
+    }
+}
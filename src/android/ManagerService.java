@@ -11,7 +11,10 @@ import android.content.Intent;
 import android.net.NetworkInfo;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -22,6 +25,7 @@ import com.sromku.simple.storage.SimpleStorage;
 import com.sromku.simple.storage.Storage;
 import com.sromku.simple.storage.helpers.OrderType;
 
+import net.gotev.uploadservice.HttpUploadRequest;
 import net.gotev.uploadservice.UploadService;
 import net.gotev.uploadservice.UploadServiceConfig;
 import net.gotev.uploadservice.data.UploadInfo;
@@ -30,96 +34,136 @@ import net.gotev.uploadservice.network.ServerResponse;
 import net.gotev.uploadservice.observer.request.GlobalRequestObserver;
 import net.gotev.uploadservice.observer.request.RequestObserverDelegate;
 import net.gotev.uploadservice.okhttp.OkHttpStack;
+import net.gotev.uploadservice.protocols.binary.BinaryUploadRequest;
 import net.gotev.uploadservice.protocols.multipart.MultipartUploadRequest;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
+import okhttp3.OkHttpClient;
 
 public class ManagerService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
     private GlobalRequestObserver requestObserver;
-    private Long lastProgressTimestamp = 0L;
     private Activity mainActivity;
     private IConnectedPlugin connectedPlugin;
     private Disposable networkObservable;
-    public boolean isNetworkAvailable = false;
+    public volatile boolean isNetworkAvailable = false;
     private boolean serviceIsRunning = false;
     private String notificationTitle = "Upload Service";
     private String notificationContent = "Background upload service running";
     private String offlineNotificationContent = "Waiting for connection";
     private NotificationManager notificationManager;
     private NotificationCompat.Builder defaultNotification;
+    private NotificationCoordinator notificationCoordinator;
+    private long notificationUpdateInterval = 1000;
+    private final PendingUploadIndex pendingUploads = new PendingUploadIndex();
+    private final ConcurrentHashMap<String, ChunkedUploadTask> chunkedUploads = new ConcurrentHashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private OkHttpClient httpClient;
+    private ThreadPoolExecutor uploadExecutor;
+    private ProgressDispatcher progressDispatcher;
+    private UploadScheduler uploadScheduler;
+    private AdaptiveConcurrency adaptiveConcurrency;
+    private RetryPolicy retryPolicy;
+    private MediaTransformer mediaTransformer;
+    private ContentDeduplicator contentDeduplicator;
+    private final UploadMetrics uploadMetrics = new UploadMetrics();
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(0);
+    private boolean attachMetrics = false;
+    private final ExecutorService replayExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean replayRequested = new AtomicBoolean(false);
+    private int maxWaitingUploads = 100;
+    private boolean bundleSmallFiles = false;
+    private long bundleFileSizeLimit = 65536;
+    private int bundleMaxFiles = 20;
+    private long bundleMaxSize = 1048576;
+    // uploads sent in the request of another upload, by id of that upload
+    private final ConcurrentHashMap<String, List<String>> bundles = new ConcurrentHashMap<>();
 
     public static final String CHANNEL_ID = "com.spoon.backgroundfileupload.channel";
     private static final int NOTIFICATION_ID = 8951;
+    private static final int EVENT_PAGE_SIZE = 100;
+    private static final long CONCURRENCY_SAMPLE_INTERVAL = 5000;
+    private static final int REPLAY_PAGE_SIZE = 100;
+    private static final long NETWORK_DEBOUNCE_INTERVAL = 1000;
 
     private RequestObserverDelegate broadcastReceiver = new RequestObserverDelegate() {
         @Override
         public void onProgress(Context context, UploadInfo uploadInfo) {
-            Long currentTimestamp = System.currentTimeMillis() / 1000;
-
-            if (currentTimestamp - lastProgressTimestamp >= 1) {
-                lastProgressTimestamp = currentTimestamp;
-                JSONObject data = new JSONObject(new HashMap() {{
-                    put("id", uploadInfo.getUploadId());
-                    put("progress", uploadInfo.getProgressPercent());
-                    put("state", "UPLOADING");
-                }});
-                sendCallback(data);
+            progressDispatcher.update(uploadInfo.getUploadId(), uploadInfo.getProgressPercent());
+            uploadMetrics.onProgress(uploadInfo.getUploadId(), uploadInfo.getUploadedBytes());
+            notificationCoordinator.onProgress(uploadInfo.getUploadId(), uploadInfo.getUploadedBytes());
+            if (adaptiveConcurrency != null) {
+                adaptiveConcurrency.onProgress(uploadInfo.getUploadId(), uploadInfo.getUploadedBytes());
+            }
+            List<String> bundledIds = bundles.get(uploadInfo.getUploadId());
+            if (bundledIds != null) {
+                for (String bundledId : bundledIds) {
+                    progressDispatcher.update(bundledId, uploadInfo.getProgressPercent());
+                }
             }
         }
 
         @Override
         public void onError(final Context context, final UploadInfo uploadInfo, final Throwable exception) {
-            if (!isNetworkAvailable) {
-                return;
+            List<String> bundledIds = bundles.remove(uploadInfo.getUploadId());
+            handleUploadError(uploadInfo.getUploadId(), exception);
+            if (bundledIds != null) {
+                for (String bundledId : bundledIds) {
+                    if (!isBundledUploadPending(bundledId)) {
+                        continue;
+                    }
+                    if (exception instanceof UserCancelledUploadException) {
+                        // only the first upload of the bundle was removed, the others start again on their own
+                        requeueUpload(bundledId);
+                    } else {
+                        handleUploadError(bundledId, exception);
+                    }
+                }
             }
-
-            String errorMsg = exception != null ? exception.getMessage() : "unknown exception";
-            JSONObject data = new JSONObject(new HashMap() {{
-                put("id", uploadInfo.getUploadId());
-                put("state", "FAILED");
-                put("error", "upload failed: " + errorMsg);
-                put("errorCode", exception instanceof UserCancelledUploadException ? -999 : 0);
-            }});
-
-            deletePendingUploadAndSendEvent(data);
         }
 
         @Override
         public void onSuccess(Context context, UploadInfo uploadInfo, ServerResponse serverResponse) {
-            JSONObject data = new JSONObject(new HashMap() {{
-                put("id", uploadInfo.getUploadId());
-                put("state", "UPLOADED");
-                put("serverResponse", serverResponse.getBodyString());
-                put("statusCode", serverResponse.getCode());
-            }});
-
-            deletePendingUploadAndSendEvent(data);
-            logMessage("onSuccess: " + data);
+            List<String> bundledIds = bundles.remove(uploadInfo.getUploadId());
+            handleUploadSuccess(uploadInfo.getUploadId(), serverResponse.getCode(), serverResponse.getBodyString());
+            if (bundledIds != null) {
+                for (String bundledId : bundledIds) {
+                    if (isBundledUploadPending(bundledId)) {
+                        handleUploadSuccess(bundledId, serverResponse.getCode(), serverResponse.getBodyString());
+                    }
+                }
+            }
         }
 
         @Override
         public void onCompleted(Context context, UploadInfo uploadInfo) {
-            updateNotificationText();
-            stopServiceIfInactive();
+            handleUploadCompleted();
         }
 
         @Override
@@ -128,12 +172,147 @@ public class ManagerService extends Service {
         }
     };
 
+    private ChunkedUploadTask.Delegate chunkedUploadDelegate = new ChunkedUploadTask.Delegate() {
+        @Override
+        public void onChunkedProgress(String uploadId, long uploadedBytes, long totalBytes) {
+            progressDispatcher.update(uploadId, totalBytes > 0 ? (int) (uploadedBytes * 100 / totalBytes) : 100);
+            uploadMetrics.onProgress(uploadId, uploadedBytes);
+            notificationCoordinator.onProgress(uploadId, uploadedBytes);
+            if (adaptiveConcurrency != null) {
+                adaptiveConcurrency.onProgress(uploadId, uploadedBytes);
+            }
+        }
+
+        @Override
+        public void onChunkedSuccess(String uploadId, int statusCode, String body) {
+            chunkedUploads.remove(uploadId);
+            mainHandler.post(() -> {
+                handleUploadSuccess(uploadId, statusCode, body);
+                handleUploadCompleted();
+            });
+        }
+
+        @Override
+        public void onChunkedError(String uploadId, Throwable exception) {
+            chunkedUploads.remove(uploadId);
+            mainHandler.post(() -> {
+                handleUploadError(uploadId, exception);
+                handleUploadCompleted();
+            });
+        }
+    };
+
+    private final Runnable concurrencySampler = new Runnable() {
+        @Override
+        public void run() {
+            boolean saturated = uploadScheduler.waitingCount() > 0 && uploadScheduler.inFlightCount() >= uploadScheduler.getMaxInFlight();
+            int limit = adaptiveConcurrency.sample(CONCURRENCY_SAMPLE_INTERVAL, saturated);
+            if (limit != uploadScheduler.getMaxInFlight()) {
+                logMessage(String.format("eventLabel='Uploader parallel uploads limit changed' limit=%d", limit));
+                uploadScheduler.setMaxInFlight(limit);
+            }
+            mainHandler.postDelayed(this, CONCURRENCY_SAMPLE_INTERVAL);
+        }
+    };
+
+    private void sendProgressEvents(JSONArray events) {
+        int parallelUploadsLimit = uploadScheduler.getMaxInFlight();
+        for (int i = 0; i < events.length(); i++) {
+            try {
+                events.getJSONObject(i).put("parallelUploadsLimit", parallelUploadsLimit);
+            } catch (JSONException exception) {
+                logMessage(String.format("eventLabel='Uploader could not add parallel uploads limit to progress event' error='%s'", exception.getMessage()));
+            }
+        }
+        sendCallback(events);
+    }
+
+    private void handleUploadError(String uploadId, Throwable exception) {
+        progressDispatcher.remove(uploadId);
+        if (!isNetworkAvailable) {
+            // left to the store, it is replayed when the network comes back
+            pendingUploads.setState(uploadId, PendingUploadIndex.State.STORED);
+            PendingUpload.updateState(uploadId, PendingUploadIndex.State.QUEUED);
+            uploadScheduler.finish(uploadId);
+            if (adaptiveConcurrency != null) {
+                adaptiveConcurrency.forget(uploadId);
+            }
+            return;
+        }
+
+        if (adaptiveConcurrency != null && !(exception instanceof UserCancelledUploadException)) {
+            adaptiveConcurrency.onError(uploadId);
+        }
+
+        long retryDelay = retryPolicy.retryDelay(exception, uploadScheduler.attempts(uploadId));
+        if (retryDelay != RetryPolicy.NO_RETRY && pendingUploads.contains(uploadId)) {
+            long nextAttemptAt = System.currentTimeMillis() + retryDelay;
+            pendingUploads.setState(uploadId, PendingUploadIndex.State.QUEUED);
+            int attempts = uploadScheduler.retryAt(uploadId, nextAttemptAt);
+            PendingUpload.updateRetry(uploadId, attempts, nextAttemptAt);
+            uploadMetrics.onRetry(uploadId);
+            logMessage(String.format("eventLabel='Uploader upload will be retried' uploadId='%s' attempt=%d delay_ms=%d error='%s'", uploadId, attempts, retryDelay, exception != null ? exception.getMessage() : null));
+            return;
+        }
+
+        String errorMsg = exception != null ? exception.getMessage() : "unknown exception";
+        JSONObject data = new JSONObject(new HashMap() {{
+            put("id", uploadId);
+            put("state", "FAILED");
+            put("error", "upload failed: " + errorMsg);
+            put("errorCode", exception instanceof UserCancelledUploadException ? -999 : 0);
+        }});
+
+        deletePendingUploadAndSendEvent(data);
+    }
+
+    private void requeueUpload(String uploadId) {
+        progressDispatcher.remove(uploadId);
+        if (adaptiveConcurrency != null) {
+            adaptiveConcurrency.forget(uploadId);
+        }
+        pendingUploads.setState(uploadId, PendingUploadIndex.State.QUEUED);
+        PendingUpload.updateState(uploadId, PendingUploadIndex.State.QUEUED);
+        uploadScheduler.requeue(uploadId);
+    }
+
+    private void handleUploadSuccess(String uploadId, int statusCode, String serverResponse) {
+        progressDispatcher.remove(uploadId);
+        contentDeduplicator.onUploaded(uploadId, statusCode, serverResponse);
+        if (adaptiveConcurrency != null) {
+            adaptiveConcurrency.onSuccess(uploadId);
+        }
+        JSONObject data = new JSONObject(new HashMap() {{
+            put("id", uploadId);
+            put("state", "UPLOADED");
+            put("serverResponse", serverResponse);
+            put("statusCode", statusCode);
+        }});
+
+        deletePendingUploadAndSendEvent(data);
+        logMessage("onSuccess: " + data);
+    }
+
+    private void handleUploadCompleted() {
+        updateNotificationText();
+        if (uploadScheduler.waitingCount() < maxWaitingUploads / 2) {
+            requestReplay();
+        }
+        stopServiceIfInactive();
+    }
+
     public void sendCallback(JSONObject obj) {
         if (this.connectedPlugin != null) {
             this.connectedPlugin.callback(obj);
         }
     }
 
+    public void sendCallback(JSONArray events) {
+        if (this.connectedPlugin != null) {
+            this.connectedPlugin.callback(events);
+        }
+    }
+
     public void deletePendingUploadAndSendEvent(JSONObject obj) {
         String id;
         try {
@@ -143,7 +322,23 @@ public class ManagerService extends Service {
             return;
         }
         logMessage(String.format("eventLabel='Uploader delete pending upload' uploadId='%s'", id));
+        pendingUploads.remove(id);
         PendingUpload.remove(id);
+        uploadScheduler.finish(id);
+        mediaTransformer.cleanup(id);
+        contentDeduplicator.forget(id);
+        if (adaptiveConcurrency != null) {
+            adaptiveConcurrency.forget(id);
+        }
+        notificationCoordinator.onFinished(id);
+        JSONObject metrics = uploadMetrics.onFinished(id, "UPLOADED".equals(obj.optString("state")));
+        if (attachMetrics) {
+            try {
+                obj.put("metrics", metrics);
+            } catch (JSONException error) {
+                logMessage(String.format("eventLabel='Uploader could not add metrics to event' uploadId='%s' error='%s'", id, error.getMessage()));
+            }
+        }
         createAndSendEvent(obj);
     }
 
@@ -153,8 +348,7 @@ public class ManagerService extends Service {
     }
 
     public void stopServiceIfInactive() {
-        long pendingUploadCount = PendingUpload.count(PendingUpload.class);
-        if (pendingUploadCount == 0 && this.connectedPlugin == null) {
+        if (pendingUploads.isEmpty() && this.connectedPlugin == null) {
             if (this.requestObserver != null) {
                 this.requestObserver.unregister();
                 this.requestObserver = null;
@@ -164,6 +358,12 @@ public class ManagerService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        UploadStore.init(this);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (!this.serviceIsRunning) {
@@ -171,6 +371,7 @@ public class ManagerService extends Service {
 
             try {
                 JSONObject settings = new JSONObject(intent.getStringExtra("options"));
+                this.notificationUpdateInterval = Math.max(0, settings.optLong("notificationUpdateInterval", notificationUpdateInterval));
                 this.notificationTitle = settings.getString("notificationTitle");
                 this.notificationContent = settings.getString("notificationContent");
                 this.offlineNotificationContent = settings.getString("offlineNotificationContent");
@@ -178,19 +379,47 @@ public class ManagerService extends Service {
                 error.printStackTrace();
             }
 
+            // nothing is running yet, uploads interrupted by the end of the previous process are queued again
+            PendingUpload.resetStates();
+            pendingUploads.load(PendingUpload.allIds());
             startForegroundNotification();
+            this.notificationCoordinator = new NotificationCoordinator(
+                    mainHandler,
+                    notificationUpdateInterval,
+                    notificationManager,
+                    NOTIFICATION_ID,
+                    defaultNotification,
+                    new NotificationCoordinator.Queue() {
+                        @Override
+                        public int pendingCount() {
+                            return pendingUploads.size();
+                        }
+
+                        @Override
+                        public boolean isOnline() {
+                            return isNetworkAvailable;
+                        }
+                    },
+                    this.notificationContent,
+                    this.offlineNotificationContent
+            );
             initUploadService(intent.getStringExtra("options"));
             networkObservable = ReactiveNetwork
                     .observeNetworkConnectivity(this)
                     .subscribeOn(Schedulers.io())
+                    // a flapping connection only counts once it has settled
+                    .debounce(NETWORK_DEBOUNCE_INTERVAL, TimeUnit.MILLISECONDS)
                     .observeOn(AndroidSchedulers.mainThread())
                     .subscribe(connectivity -> {
                         logMessage(String.format("eventLabel='Uploader Network connectivity changed' connectivity_state='%s'", connectivity.state()));
                         isNetworkAvailable = connectivity.state() == NetworkInfo.State.CONNECTED;
 
-                        if (isNetworkAvailable) {
-                            uploadPendingList();
-                        }
+                        NetworkConditions networkConditions = NetworkConditions.current(this, isNetworkAvailable);
+                        logMessage(String.format("eventLabel='Uploader network conditions' %s", networkConditions));
+                        replayExecutor.execute(() -> {
+                            uploadScheduler.setNetworkConditions(networkConditions);
+                            replayPendingUploads();
+                        });
 
                         updateNotificationText();
                     });
@@ -199,17 +428,7 @@ public class ManagerService extends Service {
     }
 
     private void updateNotificationText() {
-        long pendingUploadCount = PendingUpload.count(PendingUpload.class);
-        String notificationContent;
-
-        if (isNetworkAvailable) {
-            notificationContent = pendingUploadCount > 0 ? String.format("%d upload(s) remaining", pendingUploadCount) : this.notificationContent;
-        } else {
-            notificationContent = pendingUploadCount > 0 ? String.format("%d upload(s) remaining (offline)", pendingUploadCount) : this.offlineNotificationContent;
-        }
-
-        defaultNotification.setContentText(notificationContent);
-        notificationManager.notify(NOTIFICATION_ID, defaultNotification.build());
+        notificationCoordinator.requestUpdate();
     }
 
     private void startForegroundNotification() {
@@ -258,28 +477,85 @@ public class ManagerService extends Service {
                 false
         );
 
-        this.requestObserver = new GlobalRequestObserver(this.getApplication(), broadcastReceiver);
-        this.requestObserver.register();
-
         int parallelUploadsLimit = 1;
+        long progressInterval = 1000;
+        UploadScheduler.Policy schedulingPolicy = UploadScheduler.Policy.FIFO;
+        long priorityAgingInterval = 60000;
+        boolean adaptiveParallelism = false;
+        int minParallelUploads = 1;
+        int maxParallelUploads = 1;
+        int maxRetries = 0;
+        long retryInitialDelay = 1000;
+        long retryMaxDelay = 300000;
+        int maxParallelTransforms = 1;
+        int deduplicationCacheSize = 1000;
+        long uploadThreadKeepAlive = 5000;
+        JSONObject settings = new JSONObject();
         try {
-            JSONObject settings = new JSONObject(options);
+            settings = new JSONObject(options);
             parallelUploadsLimit = settings.getInt("parallelUploadsLimit");
+            progressInterval = settings.optLong("progressInterval", progressInterval);
+            if ("smallestFirst".equals(settings.optString("schedulingPolicy"))) {
+                schedulingPolicy = UploadScheduler.Policy.SMALLEST_FIRST;
+            }
+            priorityAgingInterval = settings.optLong("priorityAgingInterval", priorityAgingInterval);
+            adaptiveParallelism = settings.optBoolean("adaptiveParallelism", false);
+            minParallelUploads = settings.optInt("minParallelUploads", 1);
+            maxParallelUploads = settings.optInt("maxParallelUploads", Math.max(parallelUploadsLimit, 4));
+            maxRetries = settings.optInt("maxRetries", maxRetries);
+            retryInitialDelay = settings.optLong("retryInitialDelay", retryInitialDelay);
+            retryMaxDelay = settings.optLong("retryMaxDelay", retryMaxDelay);
+            maxParallelTransforms = Math.max(1, settings.optInt("maxParallelTransforms", maxParallelTransforms));
+            deduplicationCacheSize = Math.max(1, settings.optInt("deduplicationCacheSize", deduplicationCacheSize));
+            attachMetrics = settings.optBoolean("attachMetrics", false);
+            maxWaitingUploads = Math.max(1, settings.optInt("maxWaitingUploads", maxWaitingUploads));
+            uploadThreadKeepAlive = Math.max(0, settings.optLong("uploadThreadKeepAlive", uploadThreadKeepAlive));
+            bundleSmallFiles = settings.optBoolean("bundleSmallFiles", false);
+            bundleFileSizeLimit = settings.optLong("bundleFileSizeLimit", bundleFileSizeLimit);
+            bundleMaxFiles = Math.max(1, settings.optInt("bundleMaxFiles", bundleMaxFiles));
+            bundleMaxSize = settings.optLong("bundleMaxSize", bundleMaxSize);
+            bandwidthLimiter.setRate(settings.optLong("bandwidthLimit", 0));
+            UploadEvent.configure(
+                    Math.max(0, settings.optInt("maxEventResponseSize", 65536)),
+                    "file".equals(settings.optString("eventResponseOverflow")) ? new File(getFilesDir(), "upload-responses") : null,
+                    Math.max(0, settings.optLong("eventTtl", 7 * 24 * 3600 * 1000L)),
+                    Math.max(0, settings.optInt("maxStoredEvents", 1000))
+            );
         } catch (JSONException error) {
             ManagerService.logMessage(String.format("eventLabel='Uploader could not read parallelUploadsLimit from config' error='%s'", error.getMessage()));
         }
 
-        UploadServiceConfig.setNotificationHandlerFactory((uploadService) -> new NotificationHandler(uploadService, getPendingIntent()));
-        UploadServiceConfig.setHttpStack(new OkHttpStack());
-        ExecutorService threadPoolExecutor =
+        int poolSize = parallelUploadsLimit;
+        if (adaptiveParallelism) {
+            this.adaptiveConcurrency = new AdaptiveConcurrency(parallelUploadsLimit, minParallelUploads, maxParallelUploads);
+            parallelUploadsLimit = this.adaptiveConcurrency.getLimit();
+            poolSize = this.adaptiveConcurrency.getMaxLimit();
+            mainHandler.postDelayed(concurrencySampler, CONCURRENCY_SAMPLE_INTERVAL);
+        }
+        this.retryPolicy = new RetryPolicy(maxRetries, retryInitialDelay, retryMaxDelay);
+        this.mediaTransformer = new MediaTransformer(this, maxParallelTransforms);
+        this.contentDeduplicator = new ContentDeduplicator(this, deduplicationCacheSize);
+        this.uploadScheduler = new UploadScheduler(mainHandler, this::startUpload, parallelUploadsLimit, schedulingPolicy, priorityAgingInterval);
+
+        this.progressDispatcher = new ProgressDispatcher(mainHandler, progressInterval, this::sendProgressEvents);
+        this.requestObserver = new GlobalRequestObserver(this.getApplication(), broadcastReceiver);
+        this.requestObserver.register();
+
+        UploadServiceConfig.setNotificationHandlerFactory((uploadService) -> new NotificationHandler(uploadService, getPendingIntent(), bandwidthLimiter));
+        this.httpClient = HttpClientFactory.create(settings, poolSize, bandwidthLimiter);
+        UploadServiceConfig.setHttpStack(new OkHttpStack(this.httpClient));
+        // the scheduler never starts more than poolSize uploads, the queue only absorbs
+        // the overlap between a finishing task and the one started in its slot
+        this.uploadExecutor =
                 new ThreadPoolExecutor(
-                        parallelUploadsLimit,
-                        parallelUploadsLimit,
-                        5L,
-                        TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<Runnable>()
+                        poolSize,
+                        poolSize,
+                        uploadThreadKeepAlive,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(poolSize)
                 );
-        UploadServiceConfig.setThreadPool((AbstractExecutorService) threadPoolExecutor);
+        this.uploadExecutor.allowCoreThreadTimeOut(uploadThreadKeepAlive > 0);
+        UploadServiceConfig.setThreadPool((AbstractExecutorService) this.uploadExecutor);
     }
 
     private PendingIntent getPendingIntent() {
@@ -293,33 +569,169 @@ public class ManagerService extends Service {
         return null;
     }
 
-    private void uploadPendingList() {
-        List<PendingUpload> previousUploads = PendingUpload.all();
-        for (PendingUpload upload : previousUploads) {
-            JSONObject obj = null;
+    private void requestReplay() {
+        if (pendingUploads.hasStored() && replayRequested.compareAndSet(false, true)) {
+            replayExecutor.execute(() -> {
+                replayRequested.set(false);
+                replayPendingUploads();
+            });
+        }
+    }
+
+    /**
+     * Hands stored uploads to the scheduler, highest priority first, until it holds
+     * maxWaitingUploads uploads that could start. The others stay in the store and are
+     * picked up by a later replay as slots free up. Uploads not allowed on the current
+     * network are skipped, they are picked up by the replay following a network change.
+     * Runs on the replay thread.
+     */
+    private void replayPendingUploads() {
+        PendingUpload last = null;
+        List<PendingUpload> page;
+        do {
+            if (!isNetworkAvailable || !pendingUploads.hasStored()) {
+                return;
+            }
+            page = PendingUpload.page(last, REPLAY_PAGE_SIZE);
+            for (PendingUpload upload : page) {
+                if (waitingUploadCount() >= maxWaitingUploads) {
+                    uploadScheduler.startWaiting();
+                    return;
+                }
+                last = upload;
+                UploadSpec spec = upload.spec();
+                if (spec != null && !isAllowedOnCurrentNetwork(spec)) {
+                    continue;
+                }
+                if (!pendingUploads.claimStored(upload.uploadId)) {
+                    continue;
+                }
+                if (spec == null) {
+                    deletePendingUploadAndSendEvent(new JSONObject(new HashMap() {{
+                        put("id", upload.uploadId);
+                        put("state", "FAILED");
+                        put("errorCode", 0);
+                        put("error", "could not parse pending upload");
+                    }}));
+                    continue;
+                }
+                logMessage(String.format("eventLabel='Uploader replay pending upload' uploadId='%s'", upload.uploadId));
+                addToScheduler(spec, upload.attempts, upload.nextAttemptAt);
+            }
+            uploadScheduler.startWaiting();
+        } while (page.size() == REPLAY_PAGE_SIZE);
+    }
+
+    private void enqueueUpload(UploadSpec spec) {
+        admit(spec);
+        uploadScheduler.startWaiting();
+    }
+
+    /**
+     * Hands a new upload to the scheduler while fewer than maxWaitingUploads waiting
+     * uploads could start, otherwise leaves it in the store so that memory stays flat with
+     * the queue depth. Uploads not allowed on the current network are stored as well.
+     */
+    private void admit(UploadSpec spec) {
+        if (waitingUploadCount() >= maxWaitingUploads || !isAllowedOnCurrentNetwork(spec)) {
+            pendingUploads.setState(spec.id, PendingUploadIndex.State.STORED);
+            return;
+        }
+        addToScheduler(spec, 0, 0);
+    }
+
+    // uploads being hashed or transformed are held in memory like those waiting in the scheduler
+    private int waitingUploadCount() {
+        return uploadScheduler.startableCount() + contentDeduplicator.pendingCount() + mediaTransformer.pendingCount();
+    }
+
+    private boolean isAllowedOnCurrentNetwork(UploadSpec spec) {
+        long size = 0;
+        // the scheduler checks the size of the transformed file, which is not known yet and
+        // may fit where the original does not: the size is left to the scheduler
+        if (spec.constraints.dependsOnSize() && !spec.hasTransform()) {
             try {
-                obj = new JSONObject(upload.data);
-            } catch (JSONException exception) {
-                logMessage(String.format("eventLabel='Uploader could not parse pending upload' uploadId='%s' error='%s'", upload.uploadId, exception.getMessage()));
-                deletePendingUploadAndSendEvent(new JSONObject(new HashMap() {{
-                    put("id", upload.uploadId);
-                    put("state", "FAILED");
-                    put("errorCode", 0);
-                    put("error", exception.getMessage());
-                }}));
+                size = UploadSource.from(this, spec.filePath).getLength();
+            } catch (IOException exception) {
+                // the upload fails with the same error once started
+                size = 0;
+            }
+        }
+        return spec.constraints.isSatisfiedBy(uploadScheduler.getNetworkConditions(), size);
+    }
+
+    private void addToScheduler(UploadSpec spec, int attempts, long nextAttemptAt) {
+        uploadMetrics.onEnqueued(spec.id);
+        if (!ContentDeduplicator.isRequested(spec)) {
+            transformAndSchedule(spec, attempts, nextAttemptAt);
+            return;
+        }
+
+        contentDeduplicator.check(spec, new ContentDeduplicator.Callback() {
+            // both outcomes are handled on the main thread, like the success and removal of the same upload
+            @Override
+            public void onUploadNeeded(UploadSpec hashed) {
+                mainHandler.post(() -> {
+                    if (!pendingUploads.contains(hashed.id)) {
+                        contentDeduplicator.forget(hashed.id);
+                        return;
+                    }
+                    transformAndSchedule(hashed, attempts, nextAttemptAt);
+                    uploadScheduler.startWaiting();
+                });
             }
-            if (obj != null) {
-                logMessage(String.format("eventLabel='Uploader upload pending list' uploadId='%s'", upload.uploadId));
-                this.startUpload(upload.dataHash());
+
+            @Override
+            public void onAlreadyUploaded(String uploadId, int statusCode, String serverResponse) {
+                mainHandler.post(() -> {
+                    if (!pendingUploads.contains(uploadId)) return;
+                    handleUploadSuccess(uploadId, statusCode, serverResponse);
+                    handleUploadCompleted();
+                });
             }
+        });
+    }
+
+    private void transformAndSchedule(UploadSpec spec, int attempts, long nextAttemptAt) {
+        if (!spec.hasTransform()) {
+            schedule(spec, attempts, nextAttemptAt);
+            return;
         }
+
+        mediaTransformer.transform(spec, transformed -> {
+            if (!pendingUploads.contains(transformed.id)) {
+                // removed while it was being transformed
+                mediaTransformer.cleanup(transformed.id);
+                return;
+            }
+            schedule(transformed, attempts, nextAttemptAt);
+            uploadScheduler.startWaiting();
+        });
     }
 
-    private void startUpload(HashMap<String, Object> payload) {
-        String uploadId = payload.get("id").toString();
-        String requestMethod = payload.containsKey("requestMethod") ? payload.get("requestMethod").toString() : "POST";
+    private void schedule(UploadSpec spec, int attempts, long nextAttemptAt) {
+        // also needed for the progress of the whole queue in the notification
+        long size;
+        try {
+            size = UploadSource.from(this, spec.filePath).getLength();
+        } catch (IOException exception) {
+            size = Long.MAX_VALUE;
+        }
+        notificationCoordinator.onScheduled(spec.id, size == Long.MAX_VALUE ? 0 : size);
+        uploadScheduler.add(spec, size, attempts, nextAttemptAt);
+    }
 
-        if (UploadService.getTaskList().contains(uploadId)) {
+    /**
+     * Starter of the scheduler, called on whichever thread frees a slot or adds uploads:
+     * main, replay or transform thread. Everything it reaches is safe off the main
+     * thread: the indexes and the store are thread safe, the notification coordinator
+     * posts its updates to the main thread, cleaning up transform output only deletes
+     * files and Cordova plugin results can be sent from any thread.
+     */
+    private void startUpload(UploadSpec spec) {
+        String uploadId = spec.id;
+
+        if (UploadService.getTaskList().contains(uploadId) || chunkedUploads.containsKey(uploadId)) {
             logMessage(String.format("eventLabel='Uploader upload is already being uploaded. ignoring re-upload start' uploadId='%s'", uploadId));
             return;
         }
@@ -328,44 +740,166 @@ public class ManagerService extends Service {
 
         if (!isNetworkAvailable) {
             logMessage(String.format("eventLabel='Uploader no network available, upload has been queued' uploadId='%s'", uploadId));
+            pendingUploads.setState(uploadId, PendingUploadIndex.State.STORED);
+            uploadScheduler.finish(uploadId);
             return;
         }
 
-        MultipartUploadRequest request;
+        if (spec.isChunked()) {
+            startChunkedUpload(spec);
+            return;
+        }
+
+        boolean isBinaryUpload = spec.mode == UploadSpec.Mode.BINARY;
+        HttpUploadRequest<?> request;
         try {
-            request = new MultipartUploadRequest(this, payload.get("serverUrl").toString())
-                    .setUploadID(uploadId)
-                    .setMethod(requestMethod)
-                    .addFileToUpload(payload.get("filePath").toString(), payload.get("fileKey").toString())
+            if (isBinaryUpload) {
+                request = new BinaryUploadRequest(this, spec.serverUrl)
+                        .setFileToUpload(spec.filePath);
+            } else {
+                request = new MultipartUploadRequest(this, spec.serverUrl)
+                        .addFileToUpload(spec.filePath, spec.fileKey);
+            }
+            request.setUploadID(uploadId)
+                    .setMethod(spec.requestMethod)
                     .setMaxRetries(0);
         } catch (IllegalArgumentException | FileNotFoundException error) {
             sendAddingUploadError(uploadId, error);
             return;
         }
 
-        try {
-            HashMap<String, Object> headers = convertToHashMap((JSONObject) payload.get("headers"));
-            for (String key : headers.keySet()) {
-                request.addHeader(key, headers.get(key).toString());
+        if (!isBinaryUpload && isBundleable(spec)) {
+            addBundledFiles(spec, (MultipartUploadRequest) request);
+        }
+
+        for (Map.Entry<String, String> header : requestHeaders(spec).entrySet()) {
+            request.addHeader(header.getKey(), header.getValue());
+        }
+
+        if (isBinaryUpload && !spec.parameters.isEmpty()) {
+            logMessage(String.format("eventLabel='Uploader parameters are ignored for binary uploads' uploadId='%s'", uploadId));
+        } else {
+            for (Map.Entry<String, String> parameter : spec.parameters.entrySet()) {
+                request.addParameter(parameter.getKey(), parameter.getValue());
             }
-        } catch (JSONException exception) {
-            logMessage(String.format("eventLabel='could not parse request headers' uploadId='%s' error='%s'", uploadId, exception.getMessage()));
-            sendAddingUploadError(uploadId, exception);
+        }
+
+        uploadMetrics.onStarted(uploadId);
+        request.startUpload();
+        pendingUploads.setState(uploadId, PendingUploadIndex.State.UPLOADING);
+        PendingUpload.updateState(uploadId, PendingUploadIndex.State.UPLOADING);
+    }
+
+    private boolean isBundleable(UploadSpec spec) {
+        return bundleSmallFiles && spec.mode == UploadSpec.Mode.MULTIPART && !spec.isChunked();
+    }
+
+    /**
+     * Adds the files of small waiting uploads sent to the same url, with the same method,
+     * headers and parameters, to the request of a starting upload. Their ids are listed
+     * in the Upload-Bundle header in the order of the file parts, and each of them gets
+     * its own event from the shared response.
+     */
+    private void addBundledFiles(UploadSpec spec, MultipartUploadRequest request) {
+        Map<String, String> headers = requestHeaders(spec);
+        List<UploadSpec> bundledSpecs = uploadScheduler.takeBundle(spec.id, candidate ->
+                isBundleable(candidate)
+                        && candidate.serverUrl.equals(spec.serverUrl)
+                        && candidate.requestMethod.equals(spec.requestMethod)
+                        && candidate.parameters.equals(spec.parameters)
+                        && requestHeaders(candidate).equals(headers),
+                bundleFileSizeLimit, bundleMaxFiles, bundleMaxSize);
+        if (bundledSpecs.isEmpty()) {
             return;
         }
 
-        try {
-            HashMap<String, Object> parameters = convertToHashMap((JSONObject) payload.get("parameters"));
-            for (String key : parameters.keySet()) {
-                request.addParameter(key, parameters.get(key).toString());
+        List<String> bundledIds = new ArrayList<>(bundledSpecs.size());
+        StringBuilder bundleHeader = new StringBuilder(spec.id);
+        for (UploadSpec bundledSpec : bundledSpecs) {
+            try {
+                request.addFileToUpload(bundledSpec.filePath, bundledSpec.fileKey);
+            } catch (IllegalArgumentException | FileNotFoundException error) {
+                sendAddingUploadError(bundledSpec.id, error);
+                continue;
             }
-        } catch (JSONException exception) {
-            logMessage(String.format("eventLabel='could not parse request parameters' uploadId='%s' error='%s'", uploadId, exception.getMessage()));
-            sendAddingUploadError(uploadId, exception);
+            bundledIds.add(bundledSpec.id);
+            bundleHeader.append(',').append(bundledSpec.id);
+            pendingUploads.setState(bundledSpec.id, PendingUploadIndex.State.UPLOADING);
+            PendingUpload.updateState(bundledSpec.id, PendingUploadIndex.State.UPLOADING);
+            uploadMetrics.onStarted(bundledSpec.id);
+        }
+        if (bundledIds.isEmpty()) {
             return;
         }
+        // bundled uploads removed while the request runs are taken out of the list
+        bundles.put(spec.id, new CopyOnWriteArrayList<>(bundledIds));
+        request.addHeader("Upload-Bundle", bundleHeader.toString());
+        logMessage(String.format("eventLabel='Uploader bundling uploads' uploadId='%s' bundled_count=%d", spec.id, bundledIds.size()));
+    }
 
-        request.startUpload();
+    private boolean detachFromBundle(String uploadId) {
+        for (List<String> bundledIds : bundles.values()) {
+            if (bundledIds.remove(uploadId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // removed uploads stay in the request of their bundle, their result is dropped
+    private boolean isBundledUploadPending(String uploadId) {
+        if (pendingUploads.contains(uploadId)) {
+            return true;
+        }
+        uploadScheduler.finish(uploadId);
+        uploadMetrics.forget(uploadId);
+        return false;
+    }
+
+    private void startChunkedUpload(UploadSpec spec) {
+        ChunkedUploadTask task = new ChunkedUploadTask(
+                this.httpClient,
+                chunkedUploadDelegate,
+                spec.id,
+                spec.serverUrl,
+                UploadSource.from(this, spec.filePath),
+                spec.chunkSize,
+                spec.parallelParts,
+                requestHeaders(spec),
+                spec.parameters
+        );
+        chunkedUploads.put(spec.id, task);
+        uploadMetrics.onStarted(spec.id);
+        try {
+            this.uploadExecutor.execute(task);
+        } catch (RejectedExecutionException exception) {
+            // left to the store, it is replayed when a slot frees up
+            logMessage(String.format("eventLabel='Uploader no upload thread available, upload has been queued' uploadId='%s'", spec.id));
+            chunkedUploads.remove(spec.id);
+            pendingUploads.setState(spec.id, PendingUploadIndex.State.STORED);
+            uploadScheduler.finish(spec.id);
+            return;
+        }
+        pendingUploads.setState(spec.id, PendingUploadIndex.State.UPLOADING);
+        PendingUpload.updateState(spec.id, PendingUploadIndex.State.UPLOADING);
+    }
+
+    private static Map<String, String> requestHeaders(UploadSpec spec) {
+        if (spec.contentEncoding == null && spec.contentHash == null && spec.bandwidthLimit == 0) {
+            return spec.headers;
+        }
+        LinkedHashMap<String, String> headers = new LinkedHashMap<>(spec.headers);
+        if (spec.contentEncoding != null) {
+            headers.put(RequestCompression.ENCODING_HEADER, spec.contentEncoding);
+        }
+        if (spec.contentHash != null) {
+            headers.put(ContentDeduplicator.HASH_HEADER, spec.contentHash);
+        }
+        if (spec.bandwidthLimit > 0) {
+            // each part of a parallel upload is a request of its own, they share the limit
+            headers.put(BandwidthLimiter.RATE_HEADER, String.valueOf(Math.max(1, spec.bandwidthLimit / spec.parallelParts)));
+        }
+        return headers;
     }
 
     private void sendAddingUploadError(String uploadId, Exception error) {
@@ -377,35 +911,29 @@ public class ManagerService extends Service {
         }}));
     }
 
-    public static HashMap<String, Object> convertToHashMap(JSONObject jsonObject) throws JSONException {
-        HashMap<String, Object> hashMap = new HashMap<>();
-        if (jsonObject != null) {
-            Iterator<?> keys = jsonObject.keys();
-            while (keys.hasNext()) {
-                String key = (String) keys.next();
-                Object value = jsonObject.get(key);
-                hashMap.put(key, value);
-            }
-        }
-        return hashMap;
-    }
-
     private void sendMissingEvents() {
         migrateOldUploads();
 
         new Thread() {
             @Override
             public void run() {
-                try {
-                    Iterator<UploadEvent> events = UploadEvent.findAll(UploadEvent.class);
-                    while (events.hasNext()) {
-                        UploadEvent event = events.next();
-                        sendCallback(event.dataRepresentation());
-                        sleep(250);
+                UploadEvent.expire();
+                long lastEventId = 0;
+                List<UploadEvent> events;
+                do {
+                    events = UploadEvent.page(lastEventId, EVENT_PAGE_SIZE);
+                    JSONArray page = new JSONArray();
+                    for (UploadEvent event : events) {
+                        JSONObject data = event.dataRepresentation();
+                        if (data != null) {
+                            page.put(data);
+                        }
+                        lastEventId = event.getId();
                     }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+                    if (page.length() > 0) {
+                        sendCallback(page);
+                    }
+                } while (events.size() == EVENT_PAGE_SIZE && connectedPlugin != null);
             }
         }.start();
     }
@@ -446,34 +974,146 @@ public class ManagerService extends Service {
         return previousUploads;
     }
 
-    public void addUpload(JSONObject jsonPayload) {
-        HashMap payload = null;
+    public void addUpload(JSONObject jsonPayload) throws JSONException, FileNotFoundException {
+        UploadSpec spec = UploadSpec.fromJson(jsonPayload);
+
+        // the id is reserved before the upload is stored so that two adds of the same id cannot both pass,
+        // it is released if the upload is not stored
+        if (!pendingUploads.add(spec.id)) {
+            logMessage(String.format("eventLabel='Uploader an upload is already pending with this id' uploadId='%s'", spec.id));
+            return;
+        }
         try {
-            payload = convertToHashMap(jsonPayload);
-        } catch (JSONException error) {
-            logMessage(String.format("eventLabel='Uploader could not read id from payload' error:'%s'", error.getMessage()));
+            UploadSource.retainAccess(this, spec.filePath);
+            PendingUpload.create(spec);
+        } catch (FileNotFoundException | RuntimeException error) {
+            pendingUploads.remove(spec.id);
+            throw error;
         }
-        if (payload == null) return;
-        String uploadId = payload.get("id").toString();
+        enqueueUpload(spec);
+    }
 
-        if (PendingUpload.count(PendingUpload.class, "upload_id = ?", new String[]{uploadId}) > 0) {
-            logMessage(String.format("eventLabel='Uploader an upload is already pending with this id' uploadId='%s'", uploadId));
-            return;
+    public void addUploads(JSONArray jsonPayloads) {
+        LinkedHashMap<String, UploadSpec> specsById = new LinkedHashMap<>();
+        for (int i = 0; i < jsonPayloads.length(); i++) {
+            UploadSpec spec;
+            try {
+                spec = UploadSpec.fromJson(jsonPayloads.getJSONObject(i));
+            } catch (JSONException error) {
+                logMessage(String.format("eventLabel='Uploader could not read payload' index=%d error='%s'", i, error.getMessage()));
+                continue;
+            }
+            if (!pendingUploads.add(spec.id)) {
+                logMessage(String.format("eventLabel='Uploader an upload is already pending with this id' uploadId='%s'", spec.id));
+                continue;
+            }
+            try {
+                UploadSource.retainAccess(this, spec.filePath);
+            } catch (FileNotFoundException error) {
+                sendAddingUploadError(spec.id, error);
+                continue;
+            }
+            specsById.put(spec.id, spec);
         }
 
-        PendingUpload.create(jsonPayload);
-        startUpload(payload);
+        if (specsById.isEmpty()) return;
+        try {
+            PendingUpload.createAll(specsById.values());
+        } catch (RuntimeException error) {
+            // the batch is stored in a single transaction, none of it was kept
+            for (String uploadId : specsById.keySet()) {
+                pendingUploads.remove(uploadId);
+            }
+            throw error;
+        }
+        logMessage(String.format("eventLabel='Uploader upload batch persisted' count=%d", specsById.size()));
+
+        for (UploadSpec spec : specsById.values()) {
+            admit(spec);
+        }
+        uploadScheduler.startWaiting();
     }
 
     public void removeUpload(String uploadId) {
+        if (detachFromBundle(uploadId)) {
+            // its file stays in the request of the bundle, which cannot be changed once started
+            deletePendingUploadAndSendEvent(new JSONObject(new HashMap() {{
+                put("id", uploadId);
+                put("state", "FAILED");
+                put("error", "upload failed: " + new UserCancelledUploadException().getMessage());
+                put("errorCode", -999);
+            }}));
+            return;
+        }
+        if (pendingUploads.getState(uploadId) != PendingUploadIndex.State.UPLOADING) {
+            // no FAILED event will close the metrics of an upload that is not running
+            uploadMetrics.forget(uploadId);
+            notificationCoordinator.forget(uploadId);
+        }
+        uploadScheduler.remove(uploadId);
+        pendingUploads.remove(uploadId);
         PendingUpload.remove(uploadId);
-        UploadService.stopUpload(uploadId);
+        mediaTransformer.cleanup(uploadId);
+        contentDeduplicator.forget(uploadId);
+        ChunkedUploadTask chunkedUpload = chunkedUploads.get(uploadId);
+        if (chunkedUpload != null) {
+            chunkedUpload.cancel();
+        } else {
+            UploadService.stopUpload(uploadId);
+        }
     }
 
     public void acknowledgeEvent(String eventId) {
         UploadEvent.destroy(Long.valueOf(eventId.replaceAll("\\D+", "")).longValue());
     }
 
+    public void acknowledgeEvents(JSONArray eventIds) throws JSONException {
+        List<Long> ids = new ArrayList<>(eventIds.length());
+        for (int i = 0; i < eventIds.length(); i++) {
+            ids.add(Long.valueOf(eventIds.getString(i).replaceAll("\\D+", "")));
+        }
+        UploadEvent.destroyAll(ids);
+    }
+
+    public JSONObject getStats() throws JSONException {
+        JSONObject queue = new JSONObject();
+        queue.put("pending", pendingUploads.size());
+        queue.put("stored", pendingUploads.storedCount());
+        queue.put("waiting", uploadScheduler.waitingCount());
+        queue.put("inFlight", uploadScheduler.inFlightCount());
+        queue.put("parallelUploadsLimit", uploadScheduler.getMaxInFlight());
+
+        // lets benchmarks derive the allocation rate of the upload engine
+        JSONObject runtime = new JSONObject();
+        runtime.put("heapUsed", Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            runtime.put("bytesAllocated", runtimeStat("art.gc.bytes-allocated"));
+            runtime.put("gcCount", runtimeStat("art.gc.gc-count"));
+        }
+
+        JSONObject stats = uploadMetrics.toJson();
+        stats.put("queue", queue);
+        stats.put("runtime", runtime);
+        return stats;
+    }
+
+    /**
+     * Changes the limit shared by all uploads, running ones included.
+     *
+     * @param bytesPerSecond 0 removes the limit
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        bandwidthLimiter.setRate(bytesPerSecond);
+    }
+
+    private static long runtimeStat(String name) {
+        try {
+            return Long.parseLong(Debug.getRuntimeStat(name));
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
     public void setConnectedPlugin(IConnectedPlugin plugin) {
         this.connectedPlugin = plugin;
         if (this.connectedPlugin != null) {
@@ -499,6 +1139,8 @@ public class ManagerService extends Service {
 
     public interface IConnectedPlugin {
         void callback(JSONObject obj);
+
+        void callback(JSONArray events);
     }
 
     @Nullable
@@ -512,5 +1154,12 @@ public class ManagerService extends Service {
         super.onDestroy();
         if (this.networkObservable != null) { this.networkObservable.dispose(); }
         this.networkObservable = null;
+        if (this.progressDispatcher != null) { this.progressDispatcher.clear(); }
+        if (this.notificationCoordinator != null) { this.notificationCoordinator.clear(); }
+        mainHandler.removeCallbacks(concurrencySampler);
+        if (this.uploadScheduler != null) { this.uploadScheduler.clear(); }
+        if (this.mediaTransformer != null) { this.mediaTransformer.shutdown(); }
+        if (this.contentDeduplicator != null) { this.contentDeduplicator.shutdown(); }
+        replayExecutor.shutdownNow();
     }
 }
@@ -0,0 +1,243 @@
+package com.spoon.backgroundfileupload;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional pre-upload stage that downscales and recompresses images.
+ *
+ * Transforms run on a small executor of their own so that decoding and encoding
+ * never hold a network slot. The result is written to the files directory, which the
+ * system never purges, one folder per upload named after a hash of its id, and is
+ * reused if the upload is restarted after the process died. JPEG, PNG and WebP images
+ * keep their format; other sources are uploaded unchanged.
+ */
+public class MediaTransformer {
+    public interface Callback {
+        void onTransformed(UploadSpec spec);
+    }
+
+    private static final String OUTPUT_DIRECTORY = "transformed-uploads";
+    static final int DEFAULT_JPEG_QUALITY = 80;
+
+    private final Context context;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    public MediaTransformer(Context context, int threads) {
+        this.context = context;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Transforms the file of the upload in the background, then hands over a spec
+     * whose filePath points at the transformed file, or the original spec if the
+     * file could not be transformed.
+     */
+    public void transform(UploadSpec spec, Callback callback) {
+        pendingCount.incrementAndGet();
+        executor.execute(() -> {
+            String uploadId = spec.id;
+            try {
+                File output = transformImage(uploadId, spec.filePath, spec.transformMaxDimension, spec.transformJpegQuality);
+                if (output != null) {
+                    callback.onTransformed(spec.withFilePath(output.getAbsolutePath()));
+                    return;
+                }
+                ManagerService.logMessage(String.format("eventLabel='Uploader file is not a supported image, uploading it unchanged' uploadId='%s'", uploadId));
+            } catch (IOException | RuntimeException | OutOfMemoryError exception) {
+                ManagerService.logMessage(String.format("eventLabel='Uploader could not transform file, uploading it unchanged' uploadId='%s' error='%s'", uploadId, exception.getMessage()));
+                cleanup(uploadId);
+            } finally {
+                // the upload is handed to the scheduler by the callback, it is counted there from now on
+                pendingCount.decrementAndGet();
+            }
+            callback.onTransformed(spec);
+        });
+    }
+
+    /**
+     * Number of uploads queued or running in the transform stage. They count as waiting
+     * uploads, so that a large batch of transforms stays within maxWaitingUploads.
+     */
+    public int pendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Deletes the transformed file of an upload, if any.
+     */
+    public void cleanup(String uploadId) {
+        File directory = outputDirectory(uploadId);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private File transformImage(String uploadId, String filePath, int maxDimension, int jpegQuality) throws IOException {
+        UploadSource source = UploadSource.from(context, filePath);
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream stream = source.open(0)) {
+            BitmapFactory.decodeStream(stream, null, bounds);
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+
+        // re-encoding a PNG or WebP as JPEG would lose its transparency, formats without an encoder are left alone
+        Bitmap.CompressFormat format;
+        String extension;
+        if ("image/jpeg".equals(bounds.outMimeType)) {
+            format = Bitmap.CompressFormat.JPEG;
+            extension = ".jpg";
+        } else if ("image/png".equals(bounds.outMimeType)) {
+            format = Bitmap.CompressFormat.PNG;
+            extension = ".png";
+        } else if ("image/webp".equals(bounds.outMimeType)) {
+            format = Bitmap.CompressFormat.WEBP;
+            extension = ".webp";
+        } else {
+            return null;
+        }
+
+        File output = new File(outputDirectory(uploadId), baseName(source.getName()) + extension);
+        if (output.exists()) {
+            return output;
+        }
+
+        // decode at the smallest power of two that still covers maxDimension, then scale exactly
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inSampleSize = 1;
+        int largestSide = Math.max(bounds.outWidth, bounds.outHeight);
+        while (maxDimension > 0 && largestSide / (decodeOptions.inSampleSize * 2) >= maxDimension) {
+            decodeOptions.inSampleSize *= 2;
+        }
+        Bitmap bitmap;
+        try (InputStream stream = source.open(0)) {
+            bitmap = BitmapFactory.decodeStream(stream, null, decodeOptions);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        Matrix matrix = new Matrix();
+        int decodedSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (maxDimension > 0 && decodedSide > maxDimension) {
+            float scale = (float) maxDimension / decodedSide;
+            matrix.postScale(scale, scale);
+        }
+        matrix.postRotate(rotationDegrees(source, filePath));
+        if (!matrix.isIdentity()) {
+            Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+            if (transformed != bitmap) {
+                bitmap.recycle();
+                bitmap = transformed;
+            }
+        }
+
+        File directory = output.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            bitmap.recycle();
+            throw new IOException("could not create " + directory);
+        }
+        // write next to the final name so that a crash never leaves a truncated file behind
+        File partial = new File(directory, output.getName() + ".part");
+        try (OutputStream stream = new FileOutputStream(partial)) {
+            // the quality is ignored for PNG, which is lossless
+            if (!bitmap.compress(format, jpegQuality, stream)) {
+                throw new IOException("could not encode " + filePath);
+            }
+        } finally {
+            bitmap.recycle();
+        }
+        if (!partial.renameTo(output)) {
+            partial.delete();
+            throw new IOException("could not write " + output);
+        }
+
+        ManagerService.logMessage(String.format("eventLabel='Uploader file transformed' uploadId='%s' original_size=%d size=%d", uploadId, source.getLength(), output.length()));
+        return output;
+    }
+
+    private int rotationDegrees(UploadSource source, String filePath) {
+        try {
+            ExifInterface exif;
+            if (source instanceof UploadSource.FileSource) {
+                exif = new ExifInterface(filePath);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                try (InputStream stream = source.open(0)) {
+                    exif = new ExifInterface(stream);
+                }
+            } else {
+                return 0;
+            }
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException exception) {
+            return 0;
+        }
+    }
+
+    // ids are hashed so that ids differing only by characters not allowed in file names get their own folder
+    private File outputDirectory(String uploadId) {
+        return new File(new File(context.getFilesDir(), OUTPUT_DIRECTORY), sha256(uploadId));
+    }
+
+    private static String sha256(String value) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(value.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static String baseName(String name) {
+        if (name == null || name.isEmpty()) {
+            return "upload";
+        }
+        int extension = name.lastIndexOf('.');
+        return extension > 0 ? name.substring(0, extension) : name;
+    }
+}
@@ -0,0 +1,45 @@
+package com.spoon.backgroundfileupload;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Snapshot of the active network, used to decide which uploads may start on it.
+ */
+public class NetworkConditions {
+    public static final NetworkConditions OFFLINE = new NetworkConditions(false, false, false, false);
+
+    public final boolean connected;
+    public final boolean metered;
+    public final boolean roaming;
+    public final boolean cellular;
+
+    public NetworkConditions(boolean connected, boolean metered, boolean roaming, boolean cellular) {
+        this.connected = connected;
+        this.metered = metered;
+        this.roaming = roaming;
+        this.cellular = cellular;
+    }
+
+    public static NetworkConditions current(Context context, boolean connected) {
+        if (!connected) {
+            return OFFLINE;
+        }
+
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return new NetworkConditions(true, false, false, false);
+        }
+
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        boolean roaming = networkInfo != null && networkInfo.isRoaming();
+        boolean cellular = networkInfo != null && networkInfo.getType() == ConnectivityManager.TYPE_MOBILE;
+        return new NetworkConditions(true, connectivityManager.isActiveNetworkMetered(), roaming, cellular);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connected=%b metered=%b roaming=%b cellular=%b", connected, metered, roaming, cellular);
+    }
+}
@@ -0,0 +1,48 @@
+package com.spoon.backgroundfileupload;
+
+import org.json.JSONObject;
+
+/**
+ * Per upload network requirements read from the payload:
+ * requiresUnmetered, allowRoaming and maxCellularSize (in bytes).
+ */
+public class NetworkConstraints {
+    public static final NetworkConstraints NONE = new NetworkConstraints(false, true, -1);
+
+    public final boolean requiresUnmetered;
+    public final boolean allowRoaming;
+    public final long maxCellularSize;
+
+    public NetworkConstraints(boolean requiresUnmetered, boolean allowRoaming, long maxCellularSize) {
+        this.requiresUnmetered = requiresUnmetered;
+        this.allowRoaming = allowRoaming;
+        this.maxCellularSize = maxCellularSize;
+    }
+
+    public static NetworkConstraints fromJson(JSONObject payload) {
+        boolean requiresUnmetered = payload.optBoolean("requiresUnmetered", false);
+        boolean allowRoaming = payload.optBoolean("allowRoaming", true);
+        long maxCellularSize = payload.optLong("maxCellularSize", -1);
+        if (!requiresUnmetered && allowRoaming && maxCellularSize < 0) {
+            return NONE;
+        }
+        return new NetworkConstraints(requiresUnmetered, allowRoaming, maxCellularSize);
+    }
+
+    public boolean dependsOnSize() {
+        return maxCellularSize >= 0;
+    }
+
+    public boolean isSatisfiedBy(NetworkConditions conditions, long size) {
+        if (!conditions.connected) {
+            return false;
+        }
+        if (requiresUnmetered && conditions.metered) {
+            return false;
+        }
+        if (!allowRoaming && conditions.roaming) {
+            return false;
+        }
+        return maxCellularSize < 0 || !conditions.cellular || size <= maxCellularSize;
+    }
+}
@@ -0,0 +1,207 @@
+package com.spoon.backgroundfileupload;
+
+import android.app.NotificationManager;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.core.app.NotificationCompat;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the service notification up to date with the progress of the whole queue:
+ * bytes sent out of the bytes of all scheduled uploads, and the time left at the
+ * recent rate.
+ *
+ * Updates can be requested from any thread and as often as needed. They are coalesced
+ * so that the notification is rebuilt at most once per interval, and it is only posted
+ * when its text or progress changed, as NotificationManager silently drops updates
+ * posted too often.
+ *
+ * Uploads count from the moment they are scheduled. An upload that is finished, failed
+ * included, counts as done until the queue is empty; uploads still in the store are
+ * only counted by number.
+ */
+public class NotificationCoordinator {
+    public interface Queue {
+        int pendingCount();
+
+        boolean isOnline();
+    }
+
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private static class Entry {
+        final long size;
+        final AtomicLong uploadedBytes = new AtomicLong();
+
+        Entry(long size) {
+            this.size = size;
+        }
+    }
+
+    private final Handler handler;
+    private final long intervalMillis;
+    private final NotificationManager notificationManager;
+    private final int notificationId;
+    private final NotificationCompat.Builder builder;
+    private final Queue queue;
+    private final String idleContent;
+    private final String offlineContent;
+    private final ConcurrentHashMap<String, Entry> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong finishedBytes = new AtomicLong();
+    private final AtomicBoolean updateScheduled = new AtomicBoolean(false);
+    private final Runnable updateRunnable = this::update;
+
+    // only touched on the handler thread
+    private long updatedAt = 0;
+    private long sampledBytes = 0;
+    private double rate = 0;
+    private String renderedText;
+    private int renderedProgress = -1;
+
+    public NotificationCoordinator(Handler handler, long intervalMillis, NotificationManager notificationManager, int notificationId,
+                                   NotificationCompat.Builder builder, Queue queue, String idleContent, String offlineContent) {
+        this.handler = handler;
+        this.intervalMillis = intervalMillis;
+        this.notificationManager = notificationManager;
+        this.notificationId = notificationId;
+        this.builder = builder;
+        this.queue = queue;
+        this.idleContent = idleContent;
+        this.offlineContent = offlineContent;
+    }
+
+    /**
+     * Starts counting an upload, or counts it again from zero when it is rescheduled.
+     */
+    public void onScheduled(String uploadId, long size) {
+        uploads.put(uploadId, new Entry(Math.max(0, size)));
+        requestUpdate();
+    }
+
+    public void onProgress(String uploadId, long uploadedBytes) {
+        Entry entry = uploads.get(uploadId);
+        if (entry != null) {
+            entry.uploadedBytes.set(uploadedBytes);
+            requestUpdate();
+        }
+    }
+
+    public void onFinished(String uploadId) {
+        Entry entry = uploads.remove(uploadId);
+        if (entry != null) {
+            // the first upload of a bundle may have sent more, the others add their own size
+            finishedBytes.addAndGet(entry.size);
+        }
+        requestUpdate();
+    }
+
+    /**
+     * Stops counting an upload removed before it finished.
+     */
+    public void forget(String uploadId) {
+        if (uploads.remove(uploadId) != null) {
+            requestUpdate();
+        }
+    }
+
+    /**
+     * Schedules an update of the notification, right away if the last one is older
+     * than the interval. Safe to call from any thread.
+     */
+    public void requestUpdate() {
+        if (updateScheduled.compareAndSet(false, true)) {
+            handler.postDelayed(updateRunnable, Math.max(0, updatedAt + intervalMillis - SystemClock.elapsedRealtime()));
+        }
+    }
+
+    public void clear() {
+        handler.removeCallbacks(updateRunnable);
+        updateScheduled.set(false);
+    }
+
+    private void update() {
+        updateScheduled.set(false);
+        long now = SystemClock.elapsedRealtime();
+        int pendingCount = queue.pendingCount();
+        boolean online = queue.isOnline();
+
+        long totalBytes = finishedBytes.get();
+        long doneBytes = totalBytes;
+        int counted = 0;
+        for (Entry entry : uploads.values()) {
+            // a bundle reports the bytes of all its files on its first upload
+            totalBytes += entry.size;
+            doneBytes += entry.uploadedBytes.get();
+            counted++;
+        }
+        doneBytes = Math.min(doneBytes, totalBytes);
+
+        if (pendingCount == 0) {
+            // the next uploads start a new batch
+            finishedBytes.set(0);
+            rate = 0;
+            sampledBytes = 0;
+        } else if (updatedAt > 0 && now > updatedAt && doneBytes >= sampledBytes) {
+            double sample = (doneBytes - sampledBytes) * 1000.0 / (now - updatedAt);
+            rate = rate == 0 ? sample : RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * rate;
+        }
+        sampledBytes = doneBytes;
+        updatedAt = now;
+
+        String text;
+        int progress = 0;
+        if (pendingCount == 0) {
+            text = online ? idleContent : offlineContent;
+        } else {
+            StringBuilder content = new StringBuilder(String.format(Locale.getDefault(), "%s of %s", readable(doneBytes), readable(totalBytes)));
+            if (online && rate >= 1 && totalBytes > doneBytes) {
+                content.append(", ").append(readableDuration((long) ((totalBytes - doneBytes) / rate))).append(" left");
+            }
+            if (pendingCount > counted) {
+                content.append(String.format(Locale.getDefault(), " (+%d queued)", pendingCount - counted));
+            }
+            if (!online) {
+                content.append(" (offline)");
+            }
+            text = content.toString();
+            progress = totalBytes > 0 ? (int) (doneBytes * 100 / totalBytes) : 0;
+        }
+
+        if (text.equals(renderedText) && progress == renderedProgress) {
+            return;
+        }
+        renderedText = text;
+        renderedProgress = progress;
+        builder.setContentText(text);
+        builder.setProgress(pendingCount > 0 ? 100 : 0, progress, false);
+        notificationManager.notify(notificationId, builder.build());
+    }
+
+    private static String readable(long bytes) {
+        if (bytes < 1000) {
+            return String.format(Locale.getDefault(), "%d B", bytes);
+        }
+        if (bytes < 1000000) {
+            return String.format(Locale.getDefault(), "%.0f kB", bytes / 1e3);
+        }
+        if (bytes < 1000000000) {
+            return String.format(Locale.getDefault(), "%.1f MB", bytes / 1e6);
+        }
+        return String.format(Locale.getDefault(), "%.2f GB", bytes / 1e9);
+    }
+
+    private static String readableDuration(long seconds) {
+        if (seconds < 60) {
+            return "less than a minute";
+        }
+        if (seconds < 3600) {
+            return String.format(Locale.getDefault(), "%d min", seconds / 60);
+        }
+        return String.format(Locale.getDefault(), "%d h %d min", seconds / 3600, seconds % 3600 / 60);
+    }
+}
@@ -21,10 +21,17 @@ public class NotificationHandler extends AbstractSingleNotificationHandler {
     private float speed = 0;
     private int inProgress = 0;
     private PendingIntent mPendingIntent;
-
-    public NotificationHandler(@NotNull UploadService service, PendingIntent pendingIntent) {
+    private BandwidthLimiter bandwidthLimiter;
+    // called on every progress of every upload, the title is only formatted again when it changes
+    private String title;
+    private int titleInProgress = -1;
+    private long titleSpeed = -1;
+    private long titleLimit = -1;
+
+    public NotificationHandler(@NotNull UploadService service, PendingIntent pendingIntent, BandwidthLimiter bandwidthLimiter) {
         super(service);
         this.mPendingIntent = pendingIntent;
+        this.bandwidthLimiter = bandwidthLimiter;
     }
 
     @Override
@@ -49,9 +56,22 @@ public class NotificationHandler extends AbstractSingleNotificationHandler {
             }
         }
 
+        // the rate is measured on the bytes written, so it is already the throttled one
+        long limit = bandwidthLimiter.getRate();
+        long roundedSpeed = Math.round(speed * 1000);
+        if (inProgress != titleInProgress || roundedSpeed != titleSpeed || limit != titleLimit) {
+            title = String.format("Uploading %d at %s", inProgress, toReadable(speed));
+            if (limit > 0) {
+                title += String.format(" (limited to %s)", toReadable(limit / 1000f));
+            }
+            titleInProgress = inProgress;
+            titleSpeed = roundedSpeed;
+            titleLimit = limit;
+        }
+
         return builder
                 .setSmallIcon(android.R.drawable.ic_menu_upload)
-                .setContentTitle(String.format("Uploading %d at %s", inProgress, toReadable(speed)))
+                .setContentTitle(title)
                 .setContentIntent(mPendingIntent);
     }
 
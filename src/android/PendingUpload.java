@@ -1,50 +1,98 @@
 package com.spoon.backgroundfileupload;
 
-import com.orm.SugarRecord;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
-public class PendingUpload extends SugarRecord {
+public class PendingUpload {
+    long rowId;
     String uploadId;
     String data;
+    int state;
+    long uploadedBytes;
+    int priority;
+    int attempts;
+    long nextAttemptAt;
 
     public PendingUpload() {
     }
 
-    public PendingUpload(JSONObject payload) {
-        try {
-            uploadId = payload.getString("id");
-            data = payload.toString();
-        } catch (JSONException e) {
-            ManagerService.logMessage("eventLabel='Uploader error reading id during PendingUpload creation'");
-        }
+    public PendingUpload(UploadSpec spec) {
+        uploadId = spec.id;
+        priority = spec.priority;
+        data = spec.toJson().toString();
     }
 
-    public HashMap<String, Object> dataHash() {
+    public UploadSpec spec() {
         try {
-            return ManagerService.convertToHashMap(new JSONObject(this.data));
+            return UploadSpec.fromJson(new JSONObject(this.data));
         } catch (JSONException exception) {
             ManagerService.logMessage("eventLabel='Uploader could not parse pending upload' uploadId='" + this.uploadId + "' error='" + exception.getMessage() + "'");
             return null;
         }
     }
 
-    public static PendingUpload create(JSONObject payload) {
-        PendingUpload pendingUpload = new PendingUpload(payload);
-        pendingUpload.save();
+    public static PendingUpload create(UploadSpec spec) {
+        PendingUpload pendingUpload = new PendingUpload(spec);
+        UploadStore.getInstance().insertPendingUpload(pendingUpload);
         return pendingUpload;
     }
 
+    public static List<PendingUpload> createAll(Collection<UploadSpec> specs) {
+        List<PendingUpload> pendingUploads = new ArrayList<>(specs.size());
+        for (UploadSpec spec : specs) {
+            pendingUploads.add(new PendingUpload(spec));
+        }
+        UploadStore.getInstance().insertPendingUploads(pendingUploads);
+        return pendingUploads;
+    }
+
+    public static long uploadedBytes(String uploadId) {
+        return UploadStore.getInstance().uploadedBytes(uploadId);
+    }
+
+    public static void updateUploadedBytes(String uploadId, long uploadedBytes) {
+        UploadStore.getInstance().updateUploadedBytes(uploadId, uploadedBytes);
+    }
+
+    public static Map<Integer, String> completedParts(String uploadId) {
+        return UploadStore.getInstance().uploadParts(uploadId);
+    }
+
+    public static void recordPart(String uploadId, int part, String etag) {
+        UploadStore.getInstance().insertUploadPart(uploadId, part, etag);
+    }
+
+    public static void forgetParts(String uploadId) {
+        UploadStore.getInstance().deleteUploadParts(uploadId);
+    }
+
+    public static void updateState(String uploadId, PendingUploadIndex.State state) {
+        UploadStore.getInstance().updateState(uploadId, state.ordinal());
+    }
+
+    public static void resetStates() {
+        UploadStore.getInstance().resetStates();
+    }
+
+    public static void updateRetry(String uploadId, int attempts, long nextAttemptAt) {
+        UploadStore.getInstance().updateRetry(uploadId, attempts, nextAttemptAt);
+    }
+
     public static void remove(String uploadId) {
-        int deletedCount = PendingUpload.deleteAll(PendingUpload.class, "upload_id = ?", uploadId);
+        int deletedCount = UploadStore.getInstance().deletePendingUpload(uploadId);
         ManagerService.logMessage("eventLabel='Uploader delete pending upload' deleted_count=" + deletedCount);
     }
 
-    public static List<PendingUpload> all() {
-        return PendingUpload.listAll(PendingUpload.class);
+    public static List<String> allIds() {
+        return UploadStore.getInstance().pendingUploadIds();
+    }
+
+    public static List<PendingUpload> page(PendingUpload after, int limit) {
+        return UploadStore.getInstance().pendingUploads(after, limit);
     }
 }
@@ -0,0 +1,84 @@
+package com.spoon.backgroundfileupload;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PendingUploadIndex {
+    public enum State {
+        // persisted but not handed to the scheduler yet
+        STORED,
+        QUEUED,
+        UPLOADING
+    }
+
+    private final ConcurrentHashMap<String, State> states = new ConcurrentHashMap<>();
+    private final AtomicInteger storedCount = new AtomicInteger();
+
+    public void load(Collection<String> uploadIds) {
+        for (String uploadId : uploadIds) {
+            if (uploadId != null && states.putIfAbsent(uploadId, State.STORED) == null) {
+                storedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Registers the id as queued unless it is already tracked.
+     * Returns false when an upload with this id is already pending.
+     */
+    public boolean add(String uploadId) {
+        return states.putIfAbsent(uploadId, State.QUEUED) == null;
+    }
+
+    public void setState(String uploadId, State state) {
+        State previous = states.replace(uploadId, state);
+        if (previous == State.STORED && state != State.STORED) {
+            storedCount.decrementAndGet();
+        } else if (previous != null && previous != State.STORED && state == State.STORED) {
+            storedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Moves a stored upload to the queued state.
+     * Returns false when the upload is not stored, for instance because it is already queued.
+     */
+    public boolean claimStored(String uploadId) {
+        if (states.replace(uploadId, State.STORED, State.QUEUED)) {
+            storedCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public void remove(String uploadId) {
+        if (states.remove(uploadId) == State.STORED) {
+            storedCount.decrementAndGet();
+        }
+    }
+
+    public boolean contains(String uploadId) {
+        return states.containsKey(uploadId);
+    }
+
+    public State getState(String uploadId) {
+        return states.get(uploadId);
+    }
+
+    public boolean hasStored() {
+        return storedCount.get() > 0;
+    }
+
+    public int storedCount() {
+        return storedCount.get();
+    }
+
+    public int size() {
+        return states.size();
+    }
+
+    public boolean isEmpty() {
+        return states.isEmpty();
+    }
+}
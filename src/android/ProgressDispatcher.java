@@ -0,0 +1,88 @@
+package com.spoon.backgroundfileupload;
+
+import android.os.Handler;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects progress updates from all running uploads and forwards them to the
+ * javascript side once per interval, in a single batch. An upload is only part of
+ * a batch when its percentage changed since it was last sent.
+ */
+public class ProgressDispatcher {
+    public interface Listener {
+        void onProgressBatch(JSONArray events);
+    }
+
+    private final Handler handler;
+    private final long intervalMillis;
+    private final Listener listener;
+    private final ConcurrentHashMap<String, Integer> latestProgress = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> sentProgress = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushRunnable = this::flush;
+
+    public ProgressDispatcher(Handler handler, long intervalMillis, Listener listener) {
+        this.handler = handler;
+        this.intervalMillis = intervalMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Records the latest progress of an upload. Safe to call from any thread.
+     */
+    public void update(String uploadId, int progress) {
+        latestProgress.put(uploadId, progress);
+        if (flushScheduled.compareAndSet(false, true)) {
+            handler.postDelayed(flushRunnable, intervalMillis);
+        }
+    }
+
+    /**
+     * Forgets an upload so that no progress is sent for it after its final event.
+     */
+    public void remove(String uploadId) {
+        latestProgress.remove(uploadId);
+        sentProgress.remove(uploadId);
+    }
+
+    public void clear() {
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled.set(false);
+        latestProgress.clear();
+        sentProgress.clear();
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        JSONArray events = new JSONArray();
+        for (Map.Entry<String, Integer> entry : latestProgress.entrySet()) {
+            String uploadId = entry.getKey();
+            Integer progress = entry.getValue();
+            latestProgress.remove(uploadId, progress);
+            if (progress.equals(sentProgress.put(uploadId, progress))) {
+                continue;
+            }
+
+            try {
+                JSONObject event = new JSONObject();
+                event.put("id", uploadId);
+                event.put("progress", progress.intValue());
+                event.put("state", "UPLOADING");
+                events.put(event);
+            } catch (JSONException exception) {
+                ManagerService.logMessage(String.format("eventLabel='Uploader could not build progress event' uploadId='%s' error='%s'", uploadId, exception.getMessage()));
+            }
+        }
+
+        if (events.length() > 0) {
+            listener.onProgressBatch(events);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.spoon.backgroundfileupload;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.DeflaterSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * OkHttp interceptor compressing the body of uploads that asked for a content encoding.
+ *
+ * Uploads are flagged with the ENCODING_HEADER request header, which is removed before
+ * the request goes out. The original body is streamed through the encoder while it is
+ * written to the socket, so nothing is buffered in memory; as the compressed length is
+ * not known in advance, the request is sent with chunked transfer encoding.
+ */
+public class RequestCompression implements Interceptor {
+    public static final String ENCODING_HEADER = "X-Background-Upload-Encoding";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    public static boolean isSupported(String encoding) {
+        return GZIP.equals(encoding) || DEFLATE.equals(encoding);
+    }
+
+    @Override
+    public okhttp3.Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String encoding = request.header(ENCODING_HEADER);
+        if (encoding == null) {
+            return chain.proceed(request);
+        }
+
+        Request.Builder builder = request.newBuilder().removeHeader(ENCODING_HEADER);
+        if (request.body() == null || !isSupported(encoding)) {
+            return chain.proceed(builder.build());
+        }
+
+        return chain.proceed(builder
+                .header("Content-Encoding", encoding)
+                .removeHeader("Content-Length")
+                .method(request.method(), new CompressedBody(request.body(), encoding))
+                .build());
+    }
+
+    private static class CompressedBody extends RequestBody {
+        private final RequestBody body;
+        private final String encoding;
+
+        CompressedBody(RequestBody body, String encoding) {
+            this.body = body;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            Sink encoder = GZIP.equals(encoding) ? new GzipSink(new UnclosableSink(sink)) : new DeflaterSink(new UnclosableSink(sink), new Deflater());
+            BufferedSink compressed = Okio.buffer(encoder);
+            body.writeTo(compressed);
+            // writes the trailer and releases the deflater
+            compressed.close();
+        }
+    }
+
+    /**
+     * The sink given to a body belongs to the caller, which may still write to it or emit it
+     * once the body is written: closing the encoder only flushes it.
+     */
+    private static class UnclosableSink extends ForwardingSink {
+        UnclosableSink(Sink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
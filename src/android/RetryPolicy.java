@@ -0,0 +1,95 @@
+package com.spoon.backgroundfileupload;
+
+import net.gotev.uploadservice.exceptions.UploadError;
+import net.gotev.uploadservice.exceptions.UserCancelledUploadException;
+import net.gotev.uploadservice.network.ServerResponse;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides whether a failed upload is tried again and after how long.
+ *
+ * Server errors (5xx), 408, 429 and network failures such as timeouts or DNS errors
+ * are retried with an exponential backoff and jitter, up to maxRetries times. A 429 or
+ * 503 response carrying a Retry-After header is not retried before that delay.
+ * Other client errors, missing files and cancellations fail immediately.
+ */
+public class RetryPolicy {
+    public static final long NO_RETRY = -1;
+
+    private final int maxRetries;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random = new Random();
+
+    public RetryPolicy(int maxRetries, long initialDelayMillis, long maxDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param exception cause of the failure
+     * @param attempts  number of retries already made for this upload
+     * @return the delay before the next attempt, or NO_RETRY
+     */
+    public long retryDelay(Throwable exception, int attempts) {
+        if (attempts >= maxRetries || !isRetryable(exception)) {
+            return NO_RETRY;
+        }
+
+        long backoff = Math.min(maxDelayMillis, initialDelayMillis * (1L << Math.min(attempts, 30)));
+        // equal jitter: keep half of the backoff and randomize the other half
+        long delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2 + 1));
+        return Math.max(delay, retryAfter(exception));
+    }
+
+    public static boolean isRetryable(Throwable exception) {
+        if (exception == null || exception instanceof UserCancelledUploadException || exception instanceof FileNotFoundException) {
+            return false;
+        }
+        if (exception instanceof UploadError) {
+            ServerResponse response = ((UploadError) exception).getServerResponse();
+            int code = response != null ? response.getCode() : 0;
+            return code >= 500 || code == 408 || code == 429;
+        }
+        return exception instanceof IOException;
+    }
+
+    private static long retryAfter(Throwable exception) {
+        if (!(exception instanceof UploadError)) {
+            return 0;
+        }
+        ServerResponse response = ((UploadError) exception).getServerResponse();
+        if (response == null || response.getHeaders() == null) {
+            return 0;
+        }
+
+        String value = null;
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            if ("Retry-After".equalsIgnoreCase(header.getKey())) {
+                value = header.getValue();
+            }
+        }
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(value.trim()) * 1000;
+        } catch (NumberFormatException notSeconds) {
+            try {
+                SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                return Math.max(0, httpDate.parse(value.trim()).getTime() - System.currentTimeMillis());
+            } catch (ParseException notDate) {
+                return 0;
+            }
+        }
+    }
+}
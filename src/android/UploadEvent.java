@@ -1,43 +1,163 @@
 package com.spoon.backgroundfileupload;
 
-import com.orm.SugarRecord;
-
 import org.json.JSONException;
 import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 
-public class UploadEvent extends SugarRecord {
-    String data;
+/**
+ * Event waiting to be acknowledged by the javascript side.
+ *
+ * The store is kept bounded: a new event replaces the previous events of the same
+ * upload, only the latest maxStoredEvents are kept, events older than the time to live
+ * are dropped on replay, and server responses longer than maxResponseSize characters
+ * are either truncated or written to a file whose path is sent instead.
+ */
+public class UploadEvent {
+    private static final String RESPONSE_KEY = "serverResponse";
+
+    private static volatile int maxResponseSize = 65536;
+    private static volatile File responseDirectory;
+    private static volatile long timeToLive = 7 * 24 * 3600 * 1000L;
+    private static volatile int maxStoredEvents = 1000;
+
+    private final long id;
+    private final String data;
 
-    public UploadEvent() {}
+    public UploadEvent(long id, String data) {
+        this.id = id;
+        this.data = data;
+    }
 
-    public UploadEvent(JSONObject payload) {
-        data = payload.toString();
+    public Long getId() {
+        return id;
     }
 
     public JSONObject dataRepresentation() {
         try {
             JSONObject parseData = new JSONObject(this.data);
-            parseData.put("eventId", this.getId());
+            parseData.put("eventId", this.id);
             return parseData;
         } catch (JSONException e) {
             return null;
         }
     }
 
+    /**
+     * @param maxResponseSize   0 stores responses of any size
+     * @param responseDirectory where too large responses are written, null truncates them
+     * @param timeToLive        milliseconds an event is kept, 0 keeps them until acknowledged
+     * @param maxStoredEvents   0 does not limit the number of events
+     */
+    public static void configure(int maxResponseSize, File responseDirectory, long timeToLive, int maxStoredEvents) {
+        UploadEvent.maxResponseSize = maxResponseSize;
+        UploadEvent.responseDirectory = responseDirectory;
+        UploadEvent.timeToLive = timeToLive;
+        UploadEvent.maxStoredEvents = maxStoredEvents;
+    }
+
     public static UploadEvent create(JSONObject payload) {
-        UploadEvent event = new UploadEvent(payload);
-        event.save();
-        return event;
+        String responseFile = capResponse(payload);
+        String uploadId = payload.optString("id", null);
+        String data = payload.toString();
+        UploadStore store = UploadStore.getInstance();
+        long id = store.insertEvent(uploadId, data, responseFile, System.currentTimeMillis());
+        if (uploadId != null) {
+            deleteResponseFiles(store.compactEvents(uploadId, id, maxStoredEvents));
+        }
+        return new UploadEvent(id, data);
     }
 
     public static void destroy(Long eventId) {
-        UploadEvent event = UploadEvent.findById(UploadEvent.class, eventId);
-        if (event != null)
-            event.delete();
+        deleteResponseFiles(UploadStore.getInstance().deleteEvents(Collections.singletonList(eventId)));
+    }
+
+    public static void destroyAll(List<Long> eventIds) {
+        deleteResponseFiles(UploadStore.getInstance().deleteEvents(eventIds));
+    }
+
+    public static List<UploadEvent> page(long afterId, int limit) {
+        return UploadStore.getInstance().events(afterId, limit);
+    }
+
+    /**
+     * Drops the events older than the time to live, along with response files left
+     * behind by events deleted while the app was being killed.
+     */
+    public static void expire() {
+        if (timeToLive <= 0) {
+            return;
+        }
+        long createdBefore = System.currentTimeMillis() - timeToLive;
+        List<String> responseFiles = UploadStore.getInstance().expireEvents(createdBefore);
+        deleteResponseFiles(responseFiles);
+
+        File directory = responseDirectory;
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files != null) {
+            for (File file : files) {
+                if (file.lastModified() < createdBefore) {
+                    file.delete();
+                }
+            }
+        }
+        if (!responseFiles.isEmpty()) {
+            ManagerService.logMessage(String.format("eventLabel='Uploader expired events' response_files=%d", responseFiles.size()));
+        }
     }
 
-    public static List<UploadEvent> all() {
-        return UploadEvent.listAll(UploadEvent.class);
+    // returns the file the response was moved to, if any
+    private static String capResponse(JSONObject payload) {
+        String response = payload.optString(RESPONSE_KEY, null);
+        int limit = maxResponseSize;
+        if (response == null || limit <= 0 || response.length() <= limit) {
+            return null;
+        }
+
+        try {
+            File directory = responseDirectory;
+            if (directory != null) {
+                try {
+                    File file = writeResponse(directory, response);
+                    payload.remove(RESPONSE_KEY);
+                    payload.put("serverResponseFile", file.getAbsolutePath());
+                    return file.getAbsolutePath();
+                } catch (IOException exception) {
+                    ManagerService.logMessage(String.format("eventLabel='Uploader could not write server response, truncating it' uploadId='%s' error='%s'", payload.optString("id"), exception.getMessage()));
+                }
+            }
+            payload.put(RESPONSE_KEY, response.substring(0, limit));
+            payload.put("serverResponseTruncated", true);
+        } catch (JSONException exception) {
+            ManagerService.logMessage(String.format("eventLabel='Uploader could not cap server response' uploadId='%s' error='%s'", payload.optString("id"), exception.getMessage()));
+        }
+        return null;
+    }
+
+    private static File writeResponse(File directory, String response) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        File file = File.createTempFile("response", ".txt", directory);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(response);
+        } catch (IOException exception) {
+            file.delete();
+            throw exception;
+        }
+        return file;
+    }
+
+    private static void deleteResponseFiles(List<String> responseFiles) {
+        for (String path : responseFiles) {
+            new File(path).delete();
+        }
     }
 }
@@ -0,0 +1,220 @@
+package com.spoon.backgroundfileupload;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timing and throughput figures for each upload, and aggregate histograms over all
+ * finished uploads since the service started.
+ *
+ * Each upload is tracked from the moment it is handed to the scheduler: time waited
+ * before it started, time until the first bytes were sent, transfer duration, bytes
+ * sent, average and peak rate and number of retries. Progress updates only touch the
+ * record of their own upload and the histograms are made of atomic counters, so the
+ * progress path neither locks nor allocates.
+ */
+public class UploadMetrics {
+    // a rate sample needs some time between two progress updates to be meaningful
+    private static final long MIN_RATE_SAMPLE_MILLIS = 500;
+    private static final long[] DURATION_BOUNDS = {100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000};
+    private static final long[] RATE_BOUNDS = {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024, 16 * 1024 * 1024};
+
+    private static class Record {
+        final long enqueuedAt;
+        volatile long firstStartedAt;
+        volatile long startedAt;
+        volatile long firstByteAt;
+        volatile long bytesSent;
+        volatile long peakRate;
+        volatile int retries;
+        long sampleBytes;
+        long sampleAt;
+
+        Record(long enqueuedAt) {
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    static class Histogram {
+        private final long[] bounds;
+        private final AtomicLongArray counts;
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong count = new AtomicLong();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value >= bounds[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            sum.addAndGet(value);
+            count.incrementAndGet();
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            long total = count.get();
+            json.put("count", total);
+            json.put("sum", sum.get());
+            json.put("mean", total > 0 ? sum.get() / total : 0);
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i <= bounds.length; i++) {
+                JSONObject bucket = new JSONObject();
+                // upper bound of the bucket, the last one is open ended
+                bucket.put("lt", i < bounds.length ? bounds[i] : JSONObject.NULL);
+                bucket.put("count", counts.get(i));
+                buckets.put(bucket);
+            }
+            json.put("buckets", buckets);
+            return json;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Record> records = new ConcurrentHashMap<>();
+    private final Histogram waitTime = new Histogram(DURATION_BOUNDS);
+    private final Histogram timeToFirstByte = new Histogram(DURATION_BOUNDS);
+    private final Histogram duration = new Histogram(DURATION_BOUNDS);
+    private final Histogram throughput = new Histogram(RATE_BOUNDS);
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    public void onEnqueued(String uploadId) {
+        records.putIfAbsent(uploadId, new Record(System.currentTimeMillis()));
+    }
+
+    public void onStarted(String uploadId) {
+        Record record = record(uploadId);
+        long now = System.currentTimeMillis();
+        if (record.firstStartedAt == 0) {
+            record.firstStartedAt = now;
+        }
+        record.startedAt = now;
+        record.firstByteAt = 0;
+        record.bytesSent = 0;
+        record.sampleAt = now;
+        record.sampleBytes = 0;
+    }
+
+    public void onProgress(String uploadId, long uploadedBytes) {
+        Record record = records.get(uploadId);
+        if (record == null || record.startedAt == 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (record.firstByteAt == 0) {
+            if (uploadedBytes <= 0) {
+                return;
+            }
+            // rates are sampled from the first progress on, a resumed upload starts past zero
+            record.firstByteAt = now;
+            record.sampleAt = now;
+            record.sampleBytes = uploadedBytes;
+        }
+        if (uploadedBytes > record.bytesSent) {
+            record.bytesSent = uploadedBytes;
+        }
+        long elapsed = now - record.sampleAt;
+        if (elapsed >= MIN_RATE_SAMPLE_MILLIS) {
+            long rate = (uploadedBytes - record.sampleBytes) * 1000 / elapsed;
+            if (rate > record.peakRate) {
+                record.peakRate = rate;
+            }
+            record.sampleAt = now;
+            record.sampleBytes = uploadedBytes;
+        }
+    }
+
+    public void onRetry(String uploadId) {
+        record(uploadId).retries++;
+        retries.incrementAndGet();
+    }
+
+    /**
+     * Closes the record of an upload, adds it to the aggregates and returns its figures.
+     */
+    public JSONObject onFinished(String uploadId, boolean success) {
+        Record record = records.remove(uploadId);
+        (success ? uploaded : failed).incrementAndGet();
+        JSONObject metrics = new JSONObject();
+        if (record == null) {
+            return metrics;
+        }
+
+        // the wait ends at the first start, the transfer figures cover the last attempt
+        long now = System.currentTimeMillis();
+        long firstStartedAt = record.firstStartedAt > 0 ? record.firstStartedAt : now;
+        long startedAt = record.startedAt > 0 ? record.startedAt : now;
+        long transferDuration = now - startedAt;
+        long averageRate = transferDuration > 0 ? record.bytesSent * 1000 / transferDuration : 0;
+        bytesSent.addAndGet(record.bytesSent);
+        waitTime.record(firstStartedAt - record.enqueuedAt);
+        if (record.firstByteAt > 0) {
+            timeToFirstByte.record(record.firstByteAt - startedAt);
+        }
+        if (record.startedAt > 0) {
+            duration.record(transferDuration);
+            if (success && record.bytesSent > 0) {
+                throughput.record(averageRate);
+            }
+        }
+
+        try {
+            metrics.put("waitTime", firstStartedAt - record.enqueuedAt);
+            metrics.put("timeToFirstByte", record.firstByteAt > 0 ? record.firstByteAt - startedAt : JSONObject.NULL);
+            metrics.put("duration", transferDuration);
+            metrics.put("bytesSent", record.bytesSent);
+            metrics.put("averageRate", averageRate);
+            metrics.put("peakRate", Math.max(record.peakRate, averageRate));
+            metrics.put("retries", record.retries);
+        } catch (JSONException exception) {
+            ManagerService.logMessage(String.format("eventLabel='Uploader could not build upload metrics' uploadId='%s' error='%s'", uploadId, exception.getMessage()));
+        }
+        return metrics;
+    }
+
+    public void forget(String uploadId) {
+        records.remove(uploadId);
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject totals = new JSONObject();
+        totals.put("uploaded", uploaded.get());
+        totals.put("failed", failed.get());
+        totals.put("retries", retries.get());
+        totals.put("bytesSent", bytesSent.get());
+
+        JSONObject histograms = new JSONObject();
+        histograms.put("waitTime", waitTime.toJson());
+        histograms.put("timeToFirstByte", timeToFirstByte.toJson());
+        histograms.put("duration", duration.toJson());
+        histograms.put("throughput", throughput.toJson());
+
+        JSONObject json = new JSONObject();
+        json.put("totals", totals);
+        json.put("histograms", histograms);
+        return json;
+    }
+
+    private Record record(String uploadId) {
+        Record record = records.get(uploadId);
+        if (record == null) {
+            // uploads replayed after a restart are tracked from their first start
+            records.putIfAbsent(uploadId, new Record(System.currentTimeMillis()));
+            record = records.get(uploadId);
+        }
+        return record;
+    }
+}
@@ -0,0 +1,331 @@
+package com.spoon.backgroundfileupload;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Decides which pending upload is handed to the upload executor next.
+ *
+ * At most maxInFlight uploads are started at a time; the others wait here, ordered by
+ * priority (higher first). Every agingIntervalMillis spent waiting raises the priority
+ * of an upload by one so that low priority uploads are not starved. Uploads with the
+ * same effective priority are started in enqueue order, or smallest first when the
+ * SMALLEST_FIRST policy is selected. Uploads whose network constraints are not met by
+ * the current network keep waiting until the network changes, and uploads scheduled for
+ * a retry are not started before their next attempt time.
+ *
+ * A starting upload can take other waiting uploads along in the same request (see
+ * takeBundle). These run without a slot of their own but are finished, retried and
+ * counted for retries one by one like any other running upload.
+ *
+ * Uploads are picked under the lock but started outside of it, so that threads freeing a
+ * slot or reading the counters never wait for the I/O of a starting upload. A single
+ * thread starts uploads at a time and keeps going while slots are free; the others just
+ * leave the freed slots to it. Uploads can therefore be started on any thread calling
+ * into the scheduler.
+ */
+public class UploadScheduler {
+    public enum Policy {
+        FIFO,
+        SMALLEST_FIRST
+    }
+
+    public interface Starter {
+        void start(UploadSpec spec);
+    }
+
+    public interface Matcher {
+        boolean matches(UploadSpec spec);
+    }
+
+    private static class Entry {
+        final UploadSpec spec;
+        final long size;
+        final long enqueuedAt;
+        int attempts;
+        long notBefore;
+
+        Entry(UploadSpec spec, long size, long enqueuedAt) {
+            this.spec = spec;
+            this.size = size;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private final Handler handler;
+    private final Runnable wakeUp = this::startWaiting;
+
+    private final Starter starter;
+    private final Policy policy;
+    private final long agingIntervalMillis;
+    private final LinkedHashMap<String, Entry> waiting = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> inFlight = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> bundled = new LinkedHashMap<>();
+    private int maxInFlight;
+    private NetworkConditions networkConditions = NetworkConditions.OFFLINE;
+    private boolean starting = false;
+
+    public UploadScheduler(Handler handler, Starter starter, int maxInFlight, Policy policy, long agingIntervalMillis) {
+        this.handler = handler;
+        this.starter = starter;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.policy = policy;
+        this.agingIntervalMillis = agingIntervalMillis;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Adds an upload to the waiting list unless it is already waiting or running.
+     * Nothing is started until startWaiting() is called, so that a whole batch can be
+     * ordered before the first slot is given away.
+     */
+    public synchronized void add(UploadSpec spec, long size, int attempts, long notBefore) {
+        if (waiting.containsKey(spec.id) || inFlight.containsKey(spec.id) || bundled.containsKey(spec.id)) {
+            return;
+        }
+        Entry entry = new Entry(spec, size, System.currentTimeMillis());
+        entry.attempts = attempts;
+        entry.notBefore = notBefore;
+        waiting.put(spec.id, entry);
+    }
+
+    public void startWaiting() {
+        startAdmitted();
+    }
+
+    /**
+     * Frees the slot of an upload that completed, failed or was interrupted.
+     */
+    public void finish(String uploadId) {
+        synchronized (this) {
+            if (inFlight.remove(uploadId) == null) {
+                bundled.remove(uploadId);
+                return;
+            }
+        }
+        startAdmitted();
+    }
+
+    /**
+     * Puts a running upload back in the waiting list until the given time.
+     * Returns the number of retries made so far, including this one, or -1 if the
+     * upload is not running.
+     */
+    public int retryAt(String uploadId, long notBefore) {
+        int attempts;
+        synchronized (this) {
+            Entry entry = inFlight.remove(uploadId);
+            if (entry == null) {
+                entry = bundled.remove(uploadId);
+            }
+            if (entry == null) {
+                return -1;
+            }
+            entry.attempts++;
+            entry.notBefore = notBefore;
+            waiting.put(uploadId, entry);
+            attempts = entry.attempts;
+        }
+        startAdmitted();
+        return attempts;
+    }
+
+    /**
+     * Puts a running upload back in the waiting list, without counting a retry, for an
+     * upload interrupted through no fault of its own.
+     */
+    public void requeue(String uploadId) {
+        synchronized (this) {
+            Entry entry = inFlight.remove(uploadId);
+            if (entry == null) {
+                entry = bundled.remove(uploadId);
+            }
+            if (entry == null) {
+                return;
+            }
+            entry.notBefore = 0;
+            waiting.put(uploadId, entry);
+        }
+        startAdmitted();
+    }
+
+    /**
+     * Number of retries already made for a running upload.
+     */
+    public synchronized int attempts(String uploadId) {
+        Entry entry = inFlight.containsKey(uploadId) ? inFlight.get(uploadId) : bundled.get(uploadId);
+        return entry != null ? entry.attempts : 0;
+    }
+
+    /**
+     * Takes waiting uploads accepted by the matcher along with a starting upload, as long
+     * as each file is smaller than maxFileSize and the bundle, the starting upload
+     * included, holds at most maxCount files and maxBytes bytes. Only uploads that could
+     * start now are taken, in the order they were added. Sizes must have been given to
+     * add(). Returns an empty list when the starting upload is too large itself.
+     */
+    public synchronized List<UploadSpec> takeBundle(String uploadId, Matcher matcher, long maxFileSize, int maxCount, long maxBytes) {
+        List<UploadSpec> taken = new ArrayList<>();
+        Entry leader = inFlight.get(uploadId);
+        if (leader == null || leader.size >= maxFileSize) {
+            return taken;
+        }
+
+        long now = System.currentTimeMillis();
+        long bytes = leader.size;
+        Iterator<Entry> entries = waiting.values().iterator();
+        while (entries.hasNext() && taken.size() + 1 < maxCount) {
+            Entry entry = entries.next();
+            if (entry.size >= maxFileSize || bytes + entry.size > maxBytes || entry.notBefore > now
+                    || !entry.spec.constraints.isSatisfiedBy(networkConditions, entry.size) || !matcher.matches(entry.spec)) {
+                continue;
+            }
+            entries.remove();
+            bundled.put(entry.spec.id, entry);
+            bytes += entry.size;
+            taken.add(entry.spec);
+        }
+        return taken;
+    }
+
+    public synchronized void remove(String uploadId) {
+        waiting.remove(uploadId);
+    }
+
+    public synchronized void clear() {
+        handler.removeCallbacks(wakeUp);
+    }
+
+    public void setNetworkConditions(NetworkConditions networkConditions) {
+        synchronized (this) {
+            this.networkConditions = networkConditions;
+        }
+        startAdmitted();
+    }
+
+    /**
+     * Changes the number of concurrent uploads. Lowering it does not interrupt running
+     * uploads, it only delays the next ones.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        synchronized (this) {
+            this.maxInFlight = Math.max(1, maxInFlight);
+        }
+        startAdmitted();
+    }
+
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public synchronized int waitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Number of waiting uploads that could start now. Uploads held back by their network
+     * constraints or by a retry delay are left out, so that they cannot fill the waiting
+     * list and keep uploads that could start in the store.
+     */
+    public synchronized int startableCount() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Entry entry : waiting.values()) {
+            if (entry.notBefore <= now && entry.spec.constraints.isSatisfiedBy(networkConditions, entry.size)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized NetworkConditions getNetworkConditions() {
+        return networkConditions;
+    }
+
+    public synchronized int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private void startAdmitted() {
+        synchronized (this) {
+            // the thread already starting uploads also takes the slots freed meanwhile
+            if (starting) return;
+            starting = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                Entry next;
+                synchronized (this) {
+                    next = admitNext();
+                    if (next == null) {
+                        starting = false;
+                        done = true;
+                        return;
+                    }
+                }
+                // starting an upload can synchronously finish it, the loop picks up the freed slot
+                starter.start(next.spec);
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    starting = false;
+                }
+            }
+        }
+    }
+
+    // moves the next upload to start to the running ones, caller holds the lock
+    private Entry admitNext() {
+        if (!networkConditions.connected || inFlight.size() >= maxInFlight) {
+            return null;
+        }
+        Entry next = next(System.currentTimeMillis());
+        if (next != null) {
+            waiting.remove(next.spec.id);
+            inFlight.put(next.spec.id, next);
+        }
+        return next;
+    }
+
+    private Entry next(long now) {
+        Entry best = null;
+        long bestPriority = 0;
+        long nextWakeUp = Long.MAX_VALUE;
+        for (Entry entry : waiting.values()) {
+            if (!entry.spec.constraints.isSatisfiedBy(networkConditions, entry.size)) {
+                continue;
+            }
+            if (entry.notBefore > now) {
+                nextWakeUp = Math.min(nextWakeUp, entry.notBefore);
+                continue;
+            }
+            long priority = effectivePriority(entry, now);
+            if (best == null || priority > bestPriority || (priority == bestPriority && policy == Policy.SMALLEST_FIRST && entry.size < best.size)) {
+                best = entry;
+                bestPriority = priority;
+            }
+        }
+
+        if (best == null && nextWakeUp != Long.MAX_VALUE) {
+            handler.removeCallbacks(wakeUp);
+            handler.postDelayed(wakeUp, nextWakeUp - now);
+        }
+        return best;
+    }
+
+    private long effectivePriority(Entry entry, long now) {
+        if (agingIntervalMillis <= 0) {
+            return entry.spec.priority;
+        }
+        return entry.spec.priority + (now - entry.enqueuedAt) / agingIntervalMillis;
+    }
+}
@@ -0,0 +1,197 @@
+package com.spoon.backgroundfileupload;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Readable content of an upload: either a file on disk or a content:// uri
+ * (media store, Storage Access Framework document...) streamed from the
+ * ContentResolver without being copied first.
+ */
+public abstract class UploadSource {
+    private static final String CONTENT_SCHEME = "content://";
+
+    public static UploadSource from(Context context, String path) {
+        if (path.startsWith(CONTENT_SCHEME)) {
+            return new ContentUriSource(context.getContentResolver(), Uri.parse(path));
+        }
+        return new FileSource(new File(path));
+    }
+
+    /**
+     * Makes sure a content:// uri can still be read once the upload is replayed after a
+     * restart. A read grant handed over with an intent is persisted; without one, the uri
+     * is only accepted if the app can read it on its own: media store items, which rely
+     * on the storage permissions, and providers of the app or open to every app.
+     *
+     * @throws FileNotFoundException when the uri is only readable through a transient grant, or not at all
+     */
+    public static void retainAccess(Context context, String path) throws FileNotFoundException {
+        if (!path.startsWith(CONTENT_SCHEME)) {
+            return;
+        }
+        Uri uri = Uri.parse(path);
+        boolean persisted = false;
+        try {
+            context.getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            persisted = true;
+        } catch (SecurityException notPersistable) {
+            if (!isReadableWithoutGrant(context, uri)) {
+                throw new FileNotFoundException(uri + " has no persistable read permission, it would not be readable after a restart");
+            }
+        }
+
+        try {
+            new ContentUriSource(context.getContentResolver(), uri).getLength();
+        } catch (FileNotFoundException exception) {
+            throw exception;
+        } catch (IOException unknownSize) {
+            // readable, its size is computed again once the upload starts
+        }
+        if (!persisted) {
+            ManagerService.logMessage(String.format("eventLabel='Uploader content uri read without a persisted grant' uri='%s'", uri));
+        }
+    }
+
+    private static boolean isReadableWithoutGrant(Context context, Uri uri) {
+        if (MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+            return true;
+        }
+        ProviderInfo provider = context.getPackageManager().resolveContentProvider(uri.getAuthority(), 0);
+        if (provider == null) {
+            return false;
+        }
+        return context.getPackageName().equals(provider.packageName) || (provider.exported && provider.readPermission == null);
+    }
+
+    public abstract String getName();
+
+    public abstract long getLength() throws IOException;
+
+    /**
+     * Opens a stream positioned at the given byte offset.
+     */
+    public abstract InputStream open(long offset) throws IOException;
+
+    static class FileSource extends UploadSource {
+        private final File file;
+
+        FileSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public String getName() {
+            return file.getName();
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            if (!file.exists()) {
+                throw new FileNotFoundException(file.getAbsolutePath() + " does not exist");
+            }
+            return file.length();
+        }
+
+        @Override
+        public InputStream open(long offset) throws IOException {
+            FileInputStream stream = new FileInputStream(file);
+            stream.getChannel().position(offset);
+            return stream;
+        }
+    }
+
+    static class ContentUriSource extends UploadSource {
+        private final ContentResolver contentResolver;
+        private final Uri uri;
+
+        ContentUriSource(ContentResolver contentResolver, Uri uri) {
+            this.contentResolver = contentResolver;
+            this.uri = uri;
+        }
+
+        @Override
+        public String getName() {
+            String name = queryColumn(OpenableColumns.DISPLAY_NAME);
+            return name != null ? name : uri.getLastPathSegment();
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            try (ParcelFileDescriptor descriptor = openDescriptor()) {
+                if (descriptor == null) {
+                    throw new FileNotFoundException(uri + " could not be opened");
+                }
+                long length = descriptor.getStatSize();
+                if (length >= 0) {
+                    return length;
+                }
+            }
+
+            String size = queryColumn(OpenableColumns.SIZE);
+            if (size == null) {
+                throw new IOException("size of " + uri + " is unknown");
+            }
+            return Long.parseLong(size);
+        }
+
+        @Override
+        public InputStream open(long offset) throws IOException {
+            ParcelFileDescriptor descriptor = openDescriptor();
+            if (descriptor == null) {
+                throw new FileNotFoundException(uri + " could not be opened");
+            }
+
+            FileInputStream stream = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+            try {
+                stream.getChannel().position(offset);
+            } catch (IOException notSeekable) {
+                // pipes and sockets cannot seek, read through to the offset instead
+                byte[] buffer = new byte[8192];
+                long skipped = 0;
+                while (skipped < offset) {
+                    int count = stream.read(buffer, 0, (int) Math.min(buffer.length, offset - skipped));
+                    if (count == -1) {
+                        stream.close();
+                        throw new IOException("could not reach offset " + offset + " of " + uri);
+                    }
+                    skipped += count;
+                }
+            }
+            return stream;
+        }
+
+        // a revoked grant surfaces as a SecurityException, turned into the error of a missing file
+        private ParcelFileDescriptor openDescriptor() throws FileNotFoundException {
+            try {
+                return contentResolver.openFileDescriptor(uri, "r");
+            } catch (SecurityException exception) {
+                throw new FileNotFoundException(uri + " is not readable: " + exception.getMessage());
+            }
+        }
+
+        private String queryColumn(String column) {
+            try (Cursor cursor = contentResolver.query(uri, new String[]{column}, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return cursor.getString(0);
+                }
+            } catch (RuntimeException exception) {
+                ManagerService.logMessage(String.format("eventLabel='Uploader could not query content uri' uri='%s' error='%s'", uri, exception.getMessage()));
+            }
+            return null;
+        }
+    }
+}
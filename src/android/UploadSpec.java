@@ -0,0 +1,249 @@
+package com.spoon.backgroundfileupload;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable description of an upload, parsed and validated once from the javascript
+ * payload when the upload is added, and stored as compact JSON (default values are
+ * left out) in the pending uploads table.
+ *
+ * Values derived while the upload goes through the pipeline, such as the file path of
+ * a transformed image or the content hash, are set on copies through the with* methods.
+ */
+public class UploadSpec {
+    public enum Mode {
+        MULTIPART,
+        BINARY
+    }
+
+    public final String id;
+    public final String serverUrl;
+    public final String filePath;
+    public final String fileKey;
+    public final String requestMethod;
+    public final String notificationTitle;
+    public final Map<String, String> headers;
+    public final Map<String, String> parameters;
+    public final int priority;
+    public final long chunkSize;
+    public final int parallelParts;
+    public final Mode mode;
+    public final NetworkConstraints constraints;
+    public final String contentEncoding;
+    public final boolean deduplicate;
+    public final String contentHash;
+    public final int transformMaxDimension;
+    public final int transformJpegQuality;
+    public final long bandwidthLimit;
+
+    private UploadSpec(Builder builder) {
+        this.id = builder.id;
+        this.serverUrl = builder.serverUrl;
+        this.filePath = builder.filePath;
+        this.fileKey = builder.fileKey;
+        this.requestMethod = builder.requestMethod;
+        this.notificationTitle = builder.notificationTitle;
+        this.headers = Collections.unmodifiableMap(builder.headers);
+        this.parameters = Collections.unmodifiableMap(builder.parameters);
+        this.priority = builder.priority;
+        this.chunkSize = builder.chunkSize;
+        this.parallelParts = builder.parallelParts;
+        this.mode = builder.mode;
+        this.constraints = builder.constraints;
+        this.contentEncoding = builder.contentEncoding;
+        this.deduplicate = builder.deduplicate;
+        this.contentHash = builder.contentHash;
+        this.transformMaxDimension = builder.transformMaxDimension;
+        this.transformJpegQuality = builder.transformJpegQuality;
+        this.bandwidthLimit = builder.bandwidthLimit;
+    }
+
+    public boolean isChunked() {
+        return chunkSize > 0;
+    }
+
+    public boolean hasTransform() {
+        return transformJpegQuality > 0;
+    }
+
+    public UploadSpec withFilePath(String filePath) {
+        Builder builder = new Builder(this);
+        builder.filePath = filePath;
+        return builder.build();
+    }
+
+    public UploadSpec withContentHash(String contentHash) {
+        Builder builder = new Builder(this);
+        builder.contentHash = contentHash;
+        return builder.build();
+    }
+
+    /**
+     * Parses and validates a payload sent by the javascript side or read back from storage.
+     *
+     * @throws JSONException when a required field is missing or a value is invalid
+     */
+    public static UploadSpec fromJson(JSONObject json) throws JSONException {
+        Builder builder = new Builder();
+        builder.id = required(json, "id");
+        builder.serverUrl = required(json, "serverUrl");
+        builder.filePath = required(json, "filePath");
+        builder.fileKey = json.optString("fileKey", "file");
+        builder.requestMethod = json.optString("requestMethod", "POST");
+        builder.notificationTitle = json.optString("notificationTitle", null);
+        builder.headers = stringMap(json.optJSONObject("headers"));
+        builder.parameters = stringMap(json.optJSONObject("parameters"));
+        builder.priority = json.optInt("priority", 0);
+        builder.chunkSize = json.optLong("chunkSize", 0);
+        if (builder.chunkSize < 0) {
+            throw new JSONException("chunkSize must be a positive number");
+        }
+        builder.parallelParts = json.optInt("parallelParts", 1);
+        if (builder.parallelParts < 1) {
+            throw new JSONException("parallelParts must be a positive integer");
+        }
+        if (builder.parallelParts > 1 && builder.chunkSize == 0) {
+            throw new JSONException("parallelParts requires chunkSize");
+        }
+
+        String uploadMode = json.optString("uploadMode", "multipart");
+        if ("binary".equals(uploadMode)) {
+            builder.mode = Mode.BINARY;
+        } else if (!"multipart".equals(uploadMode)) {
+            throw new JSONException("uploadMode must be either multipart or binary");
+        }
+
+        builder.constraints = NetworkConstraints.fromJson(json);
+        builder.contentEncoding = json.optString("contentEncoding", null);
+        if (builder.contentEncoding != null && !RequestCompression.isSupported(builder.contentEncoding)) {
+            throw new JSONException("contentEncoding must be either gzip or deflate");
+        }
+        builder.deduplicate = json.optBoolean("deduplicate", false);
+        builder.bandwidthLimit = json.optLong("bandwidthLimit", 0);
+        if (builder.bandwidthLimit < 0) {
+            throw new JSONException("bandwidthLimit must be a positive number");
+        }
+        builder.contentHash = json.optString(ContentDeduplicator.HASH_KEY, null);
+
+        JSONObject transform = json.optJSONObject("transform");
+        if (transform != null) {
+            builder.transformMaxDimension = transform.optInt("maxDimension", 0);
+            builder.transformJpegQuality = transform.optInt("jpegQuality", MediaTransformer.DEFAULT_JPEG_QUALITY);
+            if (builder.transformMaxDimension < 0 || builder.transformJpegQuality < 1 || builder.transformJpegQuality > 100) {
+                throw new JSONException("invalid transform options");
+            }
+        }
+        return builder.build();
+    }
+
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("id", id);
+            json.put("serverUrl", serverUrl);
+            json.put("filePath", filePath);
+            if (!"file".equals(fileKey)) json.put("fileKey", fileKey);
+            if (!"POST".equals(requestMethod)) json.put("requestMethod", requestMethod);
+            if (notificationTitle != null) json.put("notificationTitle", notificationTitle);
+            if (!headers.isEmpty()) json.put("headers", new JSONObject(headers));
+            if (!parameters.isEmpty()) json.put("parameters", new JSONObject(parameters));
+            if (priority != 0) json.put("priority", priority);
+            if (chunkSize > 0) json.put("chunkSize", chunkSize);
+            if (parallelParts > 1) json.put("parallelParts", parallelParts);
+            if (mode == Mode.BINARY) json.put("uploadMode", "binary");
+            if (constraints.requiresUnmetered) json.put("requiresUnmetered", true);
+            if (!constraints.allowRoaming) json.put("allowRoaming", false);
+            if (constraints.maxCellularSize >= 0) json.put("maxCellularSize", constraints.maxCellularSize);
+            if (contentEncoding != null) json.put("contentEncoding", contentEncoding);
+            if (deduplicate) json.put("deduplicate", true);
+            if (bandwidthLimit > 0) json.put("bandwidthLimit", bandwidthLimit);
+            if (contentHash != null) json.put(ContentDeduplicator.HASH_KEY, contentHash);
+            if (hasTransform()) {
+                JSONObject transform = new JSONObject();
+                if (transformMaxDimension > 0) transform.put("maxDimension", transformMaxDimension);
+                transform.put("jpegQuality", transformJpegQuality);
+                json.put("transform", transform);
+            }
+        } catch (JSONException exception) {
+            ManagerService.logMessage(String.format("eventLabel='Uploader could not serialize upload' uploadId='%s' error='%s'", id, exception.getMessage()));
+        }
+        return json;
+    }
+
+    private static String required(JSONObject json, String key) throws JSONException {
+        String value = json.optString(key, "").trim();
+        if (value.isEmpty()) {
+            throw new JSONException(key + " is required");
+        }
+        return value;
+    }
+
+    private static Map<String, String> stringMap(JSONObject json) throws JSONException {
+        LinkedHashMap<String, String> map = new LinkedHashMap<>();
+        if (json != null) {
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                map.put(key, json.get(key).toString());
+            }
+        }
+        return map;
+    }
+
+    private static class Builder {
+        String id;
+        String serverUrl;
+        String filePath;
+        String fileKey = "file";
+        String requestMethod = "POST";
+        String notificationTitle;
+        Map<String, String> headers = new LinkedHashMap<>();
+        Map<String, String> parameters = new LinkedHashMap<>();
+        int priority;
+        long chunkSize;
+        int parallelParts = 1;
+        Mode mode = Mode.MULTIPART;
+        NetworkConstraints constraints = NetworkConstraints.NONE;
+        String contentEncoding;
+        boolean deduplicate;
+        String contentHash;
+        int transformMaxDimension;
+        int transformJpegQuality;
+        long bandwidthLimit;
+
+        Builder() {
+        }
+
+        Builder(UploadSpec spec) {
+            id = spec.id;
+            serverUrl = spec.serverUrl;
+            filePath = spec.filePath;
+            fileKey = spec.fileKey;
+            requestMethod = spec.requestMethod;
+            notificationTitle = spec.notificationTitle;
+            headers = spec.headers;
+            parameters = spec.parameters;
+            priority = spec.priority;
+            chunkSize = spec.chunkSize;
+            parallelParts = spec.parallelParts;
+            mode = spec.mode;
+            constraints = spec.constraints;
+            contentEncoding = spec.contentEncoding;
+            deduplicate = spec.deduplicate;
+            contentHash = spec.contentHash;
+            transformMaxDimension = spec.transformMaxDimension;
+            transformJpegQuality = spec.transformJpegQuality;
+            bandwidthLimit = spec.bandwidthLimit;
+        }
+
+        UploadSpec build() {
+            return new UploadSpec(this);
+        }
+    }
+}
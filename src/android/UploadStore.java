@@ -0,0 +1,458 @@
+package com.spoon.backgroundfileupload;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SQLite database holding pending uploads and their completed parts, undelivered events
+ * and the deduplication index.
+ *
+ * Events keep the id of their upload, their creation time and the file their server
+ * response was written to when it was too large to be stored inline, so that they can
+ * be compacted and expired without parsing their data.
+ *
+ * The database runs in WAL mode so that the upload threads writing offsets and retry
+ * state do not block the replay of events. Pending uploads are looked up by their
+ * indexed upload_id, and their state, priority, retry and offset information live in
+ * typed columns next to the serialized payload.
+ *
+ * The file is the one previously managed by SugarORM (schema versions 1 to 5); its
+ * tables are copied into the new schema on the first upgrade, keeping event ids so
+ * that events not yet acknowledged by the javascript side stay valid.
+ */
+public class UploadStore extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "cordova-plugin-background-upload.db";
+    private static final int DATABASE_VERSION = 10;
+    // SQLite refuses statements with more than 999 bound variables
+    private static final int MAX_QUERY_ARGUMENTS = 999;
+
+    private static UploadStore instance;
+
+    public static synchronized void init(Context context) {
+        if (instance == null) {
+            instance = new UploadStore(context.getApplicationContext());
+        }
+    }
+
+    public static UploadStore getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("UploadStore.init() must be called first");
+        }
+        return instance;
+    }
+
+    private UploadStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE pending_uploads (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "upload_id TEXT NOT NULL UNIQUE, " +
+                "data TEXT NOT NULL, " +
+                "state INTEGER NOT NULL DEFAULT 0, " +
+                "priority INTEGER NOT NULL DEFAULT 0, " +
+                "attempts INTEGER NOT NULL DEFAULT 0, " +
+                "next_attempt_at INTEGER NOT NULL DEFAULT 0, " +
+                "uploaded_bytes INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE TABLE upload_events (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "data TEXT NOT NULL)");
+        createUploadedContentsTable(db);
+        createPriorityIndex(db);
+        createPartsTable(db);
+        addEventColumns(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 6) {
+            migrateFromSugar(db);
+        }
+        if (oldVersion < 7) {
+            createPriorityIndex(db);
+        }
+        if (oldVersion < 8) {
+            createPartsTable(db);
+        }
+        if (oldVersion < 9) {
+            addEventColumns(db);
+        }
+        if (oldVersion < 10) {
+            // the requests of the cached responses are unknown, they cannot be matched any more
+            db.execSQL("DROP TABLE IF EXISTS uploaded_contents");
+            createUploadedContentsTable(db);
+        }
+    }
+
+    // cached responses of deduplicated uploads, keyed by content and request
+    private static void createUploadedContentsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS uploaded_contents (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "content_hash TEXT NOT NULL, " +
+                "server_url TEXT NOT NULL, " +
+                "request_key TEXT NOT NULL DEFAULT '', " +
+                "status_code INTEGER NOT NULL, " +
+                "server_response TEXT, " +
+                "last_used_at INTEGER NOT NULL, " +
+                "UNIQUE (content_hash, server_url, request_key))");
+        db.execSQL("CREATE INDEX IF NOT EXISTS uploaded_contents_last_used_at ON uploaded_contents (last_used_at)");
+    }
+
+    // pending uploads are replayed page by page in priority order
+    private static void createPriorityIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS pending_uploads_priority ON pending_uploads (priority DESC, id)");
+    }
+
+    // parts of parallel uploads confirmed by the server, with the ETag sent back in the completion call
+    private static void createPartsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS upload_parts (" +
+                "upload_id TEXT NOT NULL, " +
+                "part INTEGER NOT NULL, " +
+                "etag TEXT, " +
+                "PRIMARY KEY (upload_id, part))");
+    }
+
+    // events stored before these columns existed start their time to live now
+    private static void addEventColumns(SQLiteDatabase db) {
+        if (!columns(db, "upload_events").contains("UPLOAD_ID")) {
+            db.execSQL("ALTER TABLE upload_events ADD COLUMN upload_id TEXT");
+            db.execSQL("ALTER TABLE upload_events ADD COLUMN response_file TEXT");
+            db.execSQL("ALTER TABLE upload_events ADD COLUMN created_at INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("CREATE INDEX upload_events_upload_id ON upload_events (upload_id)");
+        }
+        db.execSQL("UPDATE upload_events SET created_at = ? WHERE created_at = 0", new Object[]{System.currentTimeMillis()});
+    }
+
+    private void migrateFromSugar(SQLiteDatabase db) {
+        onCreate(db);
+
+        // older plugin versions did not have every column, fall back to the defaults
+        Set<String> pendingColumns = columns(db, "PENDING_UPLOAD");
+        if (!pendingColumns.isEmpty()) {
+            db.execSQL("INSERT OR IGNORE INTO pending_uploads (upload_id, data, priority, attempts, next_attempt_at, uploaded_bytes) " +
+                    "SELECT UPLOAD_ID, DATA, " +
+                    column(pendingColumns, "PRIORITY") + ", " +
+                    column(pendingColumns, "ATTEMPTS") + ", " +
+                    column(pendingColumns, "NEXT_ATTEMPT_AT") + ", " +
+                    column(pendingColumns, "UPLOADED_BYTES") +
+                    " FROM PENDING_UPLOAD WHERE UPLOAD_ID IS NOT NULL AND DATA IS NOT NULL ORDER BY ID");
+            db.execSQL("DROP TABLE PENDING_UPLOAD");
+        }
+
+        if (!columns(db, "UPLOAD_EVENT").isEmpty()) {
+            db.execSQL("INSERT INTO upload_events (id, data) SELECT ID, DATA FROM UPLOAD_EVENT WHERE DATA IS NOT NULL");
+            db.execSQL("DROP TABLE UPLOAD_EVENT");
+        }
+
+        if (!columns(db, "UPLOADED_CONTENT").isEmpty()) {
+            db.execSQL("INSERT OR IGNORE INTO uploaded_contents (content_hash, server_url, status_code, server_response, last_used_at) " +
+                    "SELECT CONTENT_HASH, SERVER_URL, STATUS_CODE, SERVER_RESPONSE, LAST_USED_AT FROM UPLOADED_CONTENT " +
+                    "WHERE CONTENT_HASH IS NOT NULL AND SERVER_URL IS NOT NULL");
+            db.execSQL("DROP TABLE UPLOADED_CONTENT");
+        }
+
+        ManagerService.logMessage("eventLabel='Uploader migrated database from SugarORM'");
+    }
+
+    private static Set<String> columns(SQLiteDatabase db, String table) {
+        Set<String> columns = new HashSet<>();
+        try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameIndex).toUpperCase(Locale.US));
+            }
+        }
+        return columns;
+    }
+
+    private static String column(Set<String> columns, String name) {
+        return columns.contains(name) ? "COALESCE(" + name + ", 0)" : "0";
+    }
+
+    // pending uploads
+
+    public boolean insertPendingUpload(PendingUpload upload) {
+        SQLiteStatement statement = getWritableDatabase().compileStatement(
+                "INSERT OR IGNORE INTO pending_uploads (upload_id, data, priority) VALUES (?, ?, ?)");
+        try {
+            bindPendingUpload(statement, upload);
+            return statement.executeInsert() != -1;
+        } finally {
+            statement.close();
+        }
+    }
+
+    public void insertPendingUploads(Collection<PendingUpload> uploads) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        SQLiteStatement statement = db.compileStatement(
+                "INSERT OR IGNORE INTO pending_uploads (upload_id, data, priority) VALUES (?, ?, ?)");
+        try {
+            for (PendingUpload upload : uploads) {
+                bindPendingUpload(statement, upload);
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            statement.close();
+            db.endTransaction();
+        }
+    }
+
+    private static void bindPendingUpload(SQLiteStatement statement, PendingUpload upload) {
+        statement.clearBindings();
+        statement.bindString(1, upload.uploadId);
+        statement.bindString(2, upload.data);
+        statement.bindLong(3, upload.priority);
+    }
+
+    public List<String> pendingUploadIds() {
+        List<String> uploadIds = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT upload_id FROM pending_uploads", null)) {
+            while (cursor.moveToNext()) {
+                uploadIds.add(cursor.getString(0));
+            }
+        }
+        return uploadIds;
+    }
+
+    /**
+     * Returns pending uploads by decreasing priority, then insertion order, starting
+     * right after the given upload (or from the first one when it is null).
+     */
+    public List<PendingUpload> pendingUploads(PendingUpload after, int limit) {
+        String where = after == null ? "" : " WHERE priority < ? OR (priority = ? AND id > ?)";
+        String[] arguments = after == null
+                ? new String[]{String.valueOf(limit)}
+                : new String[]{String.valueOf(after.priority), String.valueOf(after.priority), String.valueOf(after.rowId), String.valueOf(limit)};
+        List<PendingUpload> uploads = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT id, upload_id, data, state, priority, attempts, next_attempt_at, uploaded_bytes FROM pending_uploads" +
+                        where + " ORDER BY priority DESC, id LIMIT ?", arguments)) {
+            while (cursor.moveToNext()) {
+                PendingUpload upload = new PendingUpload();
+                upload.rowId = cursor.getLong(0);
+                upload.uploadId = cursor.getString(1);
+                upload.data = cursor.getString(2);
+                upload.state = cursor.getInt(3);
+                upload.priority = cursor.getInt(4);
+                upload.attempts = cursor.getInt(5);
+                upload.nextAttemptAt = cursor.getLong(6);
+                upload.uploadedBytes = cursor.getLong(7);
+                uploads.add(upload);
+            }
+        }
+        return uploads;
+    }
+
+    public long uploadedBytes(String uploadId) {
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT uploaded_bytes FROM pending_uploads WHERE upload_id = ?", new String[]{uploadId})) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    public void updateUploadedBytes(String uploadId, long uploadedBytes) {
+        update("UPDATE pending_uploads SET uploaded_bytes = ? WHERE upload_id = ?", uploadId, uploadedBytes);
+    }
+
+    public void updateState(String uploadId, int state) {
+        update("UPDATE pending_uploads SET state = ? WHERE upload_id = ?", uploadId, state);
+    }
+
+    public void resetStates() {
+        getWritableDatabase().execSQL("UPDATE pending_uploads SET state = 0 WHERE state != 0");
+    }
+
+    public void updateRetry(String uploadId, int attempts, long nextAttemptAt) {
+        update("UPDATE pending_uploads SET state = 0, attempts = ?, next_attempt_at = ? WHERE upload_id = ?", uploadId, attempts, nextAttemptAt);
+    }
+
+    public int deletePendingUpload(String uploadId) {
+        deleteUploadParts(uploadId);
+        return getWritableDatabase().delete("pending_uploads", "upload_id = ?", new String[]{uploadId});
+    }
+
+    // parts of parallel uploads
+
+    public void insertUploadPart(String uploadId, int part, String etag) {
+        getWritableDatabase().execSQL("INSERT OR REPLACE INTO upload_parts (upload_id, part, etag) VALUES (?, ?, ?)",
+                new Object[]{uploadId, part, etag});
+    }
+
+    public Map<Integer, String> uploadParts(String uploadId) {
+        Map<Integer, String> parts = new HashMap<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT part, etag FROM upload_parts WHERE upload_id = ?", new String[]{uploadId})) {
+            while (cursor.moveToNext()) {
+                parts.put(cursor.getInt(0), cursor.isNull(1) ? "" : cursor.getString(1));
+            }
+        }
+        return parts;
+    }
+
+    public void deleteUploadParts(String uploadId) {
+        getWritableDatabase().delete("upload_parts", "upload_id = ?", new String[]{uploadId});
+    }
+
+    private void update(String sql, String uploadId, long... values) {
+        SQLiteStatement statement = getWritableDatabase().compileStatement(sql);
+        try {
+            for (int i = 0; i < values.length; i++) {
+                statement.bindLong(i + 1, values[i]);
+            }
+            statement.bindString(values.length + 1, uploadId);
+            statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    // events
+
+    public long insertEvent(String uploadId, String data, String responseFile, long createdAt) {
+        SQLiteStatement statement = getWritableDatabase().compileStatement("INSERT INTO upload_events (upload_id, data, response_file, created_at) VALUES (?, ?, ?, ?)");
+        try {
+            if (uploadId != null) {
+                statement.bindString(1, uploadId);
+            }
+            statement.bindString(2, data);
+            if (responseFile != null) {
+                statement.bindString(3, responseFile);
+            }
+            statement.bindLong(4, createdAt);
+            return statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Deletes the events of an upload older than its latest one, then the oldest events
+     * beyond maxEvents. Returns the response files of the deleted events.
+     */
+    public List<String> compactEvents(String uploadId, long latestEventId, int maxEvents) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            List<String> responseFiles = deleteEvents(db, "upload_id = ? AND id < ?", new String[]{uploadId, String.valueOf(latestEventId)});
+            if (maxEvents > 0) {
+                responseFiles.addAll(deleteEvents(db, "id IN (SELECT id FROM upload_events ORDER BY id DESC LIMIT -1 OFFSET ?)", new String[]{String.valueOf(maxEvents)}));
+            }
+            db.setTransactionSuccessful();
+            return responseFiles;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the events created before the given time and returns their response files.
+     */
+    public List<String> expireEvents(long createdBefore) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            List<String> responseFiles = deleteEvents(db, "created_at < ?", new String[]{String.valueOf(createdBefore)});
+            db.setTransactionSuccessful();
+            return responseFiles;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public List<UploadEvent> events(long afterId, int limit) {
+        List<UploadEvent> events = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT id, data FROM upload_events WHERE id > ? ORDER BY id LIMIT ?",
+                new String[]{String.valueOf(afterId), String.valueOf(limit)})) {
+            while (cursor.moveToNext()) {
+                events.add(new UploadEvent(cursor.getLong(0), cursor.getString(1)));
+            }
+        }
+        return events;
+    }
+
+    public List<String> deleteEvents(List<Long> eventIds) {
+        List<String> responseFiles = new ArrayList<>();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            for (int start = 0; start < eventIds.size(); start += MAX_QUERY_ARGUMENTS) {
+                List<Long> batch = eventIds.subList(start, Math.min(start + MAX_QUERY_ARGUMENTS, eventIds.size()));
+                StringBuilder placeholders = new StringBuilder();
+                String[] arguments = new String[batch.size()];
+                for (int i = 0; i < batch.size(); i++) {
+                    placeholders.append(i == 0 ? "?" : ",?");
+                    arguments[i] = String.valueOf(batch.get(i));
+                }
+                responseFiles.addAll(deleteEvents(db, "id IN (" + placeholders + ")", arguments));
+            }
+            db.setTransactionSuccessful();
+            return responseFiles;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static List<String> deleteEvents(SQLiteDatabase db, String where, String[] arguments) {
+        List<String> responseFiles = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("SELECT response_file FROM upload_events WHERE response_file IS NOT NULL AND " + where, arguments)) {
+            while (cursor.moveToNext()) {
+                responseFiles.add(cursor.getString(0));
+            }
+        }
+        db.delete("upload_events", where, arguments);
+        return responseFiles;
+    }
+
+    // deduplication index
+
+    public UploadedContent findUploadedContent(String contentHash, String serverUrl, String requestKey) {
+        SQLiteDatabase db = getWritableDatabase();
+        try (Cursor cursor = db.rawQuery(
+                "SELECT status_code, server_response FROM uploaded_contents WHERE content_hash = ? AND server_url = ? AND request_key = ?",
+                new String[]{contentHash, serverUrl, requestKey})) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            UploadedContent content = new UploadedContent(contentHash, serverUrl, requestKey, cursor.getInt(0), cursor.getString(1));
+            db.execSQL("UPDATE uploaded_contents SET last_used_at = ? WHERE content_hash = ? AND server_url = ? AND request_key = ?",
+                    new Object[]{content.lastUsedAt, contentHash, serverUrl, requestKey});
+            return content;
+        }
+    }
+
+    public void insertUploadedContent(UploadedContent content, int maxEntries) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            db.execSQL("INSERT OR REPLACE INTO uploaded_contents (content_hash, server_url, request_key, status_code, server_response, last_used_at) VALUES (?, ?, ?, ?, ?, ?)",
+                    new Object[]{content.contentHash, content.serverUrl, content.requestKey, content.statusCode, content.serverResponse, content.lastUsedAt});
+            db.execSQL("DELETE FROM uploaded_contents WHERE id IN (SELECT id FROM uploaded_contents ORDER BY last_used_at DESC LIMIT -1 OFFSET ?)",
+                    new Object[]{maxEntries});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.spoon.backgroundfileupload;
+
+/**
+ * Server response of a recently uploaded file, keyed by the SHA-256 of its content,
+ * the url it was sent to and the key of the rest of the request (see
+ * ContentDeduplicator.requestKey). Only the most recently used entries are kept.
+ */
+public class UploadedContent {
+    final String contentHash;
+    final String serverUrl;
+    final String requestKey;
+    final int statusCode;
+    final String serverResponse;
+    final long lastUsedAt;
+
+    public UploadedContent(String contentHash, String serverUrl, String requestKey, int statusCode, String serverResponse) {
+        this.contentHash = contentHash;
+        this.serverUrl = serverUrl;
+        this.requestKey = requestKey;
+        this.statusCode = statusCode;
+        this.serverResponse = serverResponse;
+        this.lastUsedAt = System.currentTimeMillis();
+    }
+
+    public static UploadedContent find(String contentHash, String serverUrl, String requestKey) {
+        return UploadStore.getInstance().findUploadedContent(contentHash, serverUrl, requestKey);
+    }
+
+    public static void record(UploadedContent content, int statusCode, String serverResponse, int maxEntries) {
+        UploadStore.getInstance().insertUploadedContent(
+                new UploadedContent(content.contentHash, content.serverUrl, content.requestKey, statusCode, serverResponse), maxEntries);
+    }
+}
@@ -4,8 +4,10 @@
 
 @interface FileTransferBackground : CDVPlugin<FileUploaderDelegate>
 -(void)startUpload:(CDVInvokedUrlCommand*)command;
+-(void)startUploads:(CDVInvokedUrlCommand*)command;
 -(void)removeUpload:(CDVInvokedUrlCommand*)command;
 -(void)initManager:(CDVInvokedUrlCommand*)command;
 -(void)acknowledgeEvent:(CDVInvokedUrlCommand*)command;
+-(void)acknowledgeEvents:(CDVInvokedUrlCommand*)command;
 -(void)destroy:(CDVInvokedUrlCommand*)command;
 @end
@@ -57,6 +57,28 @@
     } forCommand:command];
 }
 
+-(void)startUploads:(CDVInvokedUrlCommand*)command{
+    [self runBlockInBackgroundWithTryCatch:^{
+        NSArray* payloads = command.arguments[0];
+        __weak FileTransferBackground *weakSelf = self;
+        for (NSDictionary* payload in payloads) {
+            [[FileUploader sharedInstance] addUpload:payload
+                                   completionHandler:^(NSError* error) {
+                if (error){
+                    [weakSelf sendCallback:@{
+                        @"error" : error.localizedDescription,
+                        @"id" : payload[@"id"],
+                        @"errorCode" : @(error.code)
+                    }];
+                }
+            }];
+        }
+        CDVPluginResult* pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_OK];
+        [pluginResult setKeepCallback:@YES];
+        [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+    } forCommand:command];
+}
+
 -(void)removeUpload:(CDVInvokedUrlCommand*)command{
     [self runBlockInBackgroundWithTryCatch:^{
         [[FileUploader sharedInstance] removeUpload:command.arguments[0]];
@@ -95,6 +117,17 @@
     } forCommand:command];
 }
 
+-(void)acknowledgeEvents:(CDVInvokedUrlCommand*)command{
+    [self runBlockInBackgroundWithTryCatch:^{
+        for (NSString* eventId in command.arguments[0]) {
+            [[FileUploader sharedInstance] acknowledgeEventReceived:eventId];
+        }
+        CDVPluginResult* pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_OK];
+        [pluginResult setKeepCallback:@YES];
+        [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+    } forCommand:command];
+}
+
 -(void)destroy:(CDVInvokedUrlCommand*)command{
     self.pluginCommand = nil;
 }
@@ -3,6 +3,19 @@ const express = require('express')
 const Busboy = require('busboy')
 const fs = require('fs')
 const path = require('path')
+const zlib = require('zlib')
+
+// request body stream, decoded according to its Content-Encoding
+const decodedBody = (req) => {
+  switch (req.get('Content-Encoding')) {
+    case 'gzip':
+      return req.pipe(zlib.createGunzip())
+    case 'deflate':
+      return req.pipe(zlib.createInflate())
+    default:
+      return req
+  }
+}
 
 const handleUpload = (req, res, next) => {
   const busboy = new Busboy({ headers: req.headers })
@@ -29,12 +42,185 @@ const handleUpload = (req, res, next) => {
     res.status(req.method == 'POST' ? 201 : 200).send(JSON.stringify({ receivedInfo: response }))
   });
 
-  return req.pipe(busboy);
+  return decodedBody(req).pipe(busboy);
+}
+
+const chunkPath = (uploadId) => path.join('./uploads', uploadId.replace(/[^\w-]/g, '_') + '.part')
+
+const currentOffset = (uploadId) => fs.existsSync(chunkPath(uploadId)) ? fs.statSync(chunkPath(uploadId)).size : 0
+
+const parseMetadata = (header) => {
+  const metadata = {}
+  if (!header) return metadata
+  header.split(',').forEach((pair) => {
+    const [key, value] = pair.trim().split(' ')
+    metadata[key] = Buffer.from(value || '', 'base64').toString('utf8')
+  })
+  return metadata
+}
+
+const handleChunkOffset = (req, res) => {
+  const uploadId = req.get('Upload-Id')
+  if (!uploadId || !fs.existsSync(chunkPath(uploadId))) {
+    return res.status(404).end()
+  }
+  res.set('Upload-Offset', String(currentOffset(uploadId))).status(200).end()
+}
+
+// bytes first-last/length, or bytes */length for an empty body
+const isValidContentRange = (header) => {
+  if (!header) return true
+  const range = /^bytes (?:(\d+)-(\d+)|\*)\/(\d+)$/.exec(header)
+  return range !== null && (range[1] === undefined || parseInt(range[1], 10) <= parseInt(range[2], 10))
+}
+
+const handleChunk = (req, res) => {
+  const uploadId = req.get('Upload-Id')
+  const offset = parseInt(req.get('Upload-Offset'), 10)
+  const length = parseInt(req.get('Upload-Length'), 10)
+  if (!uploadId || isNaN(offset) || isNaN(length)) {
+    return res.status(400).send('Upload-Id, Upload-Offset and Upload-Length headers are required')
+  }
+  if (!isValidContentRange(req.get('Content-Range'))) {
+    return res.status(400).send('invalid Content-Range ' + req.get('Content-Range'))
+  }
+
+  const serverOffset = currentOffset(uploadId)
+  if (offset !== serverOffset) {
+    req.resume()
+    return res.set('Upload-Offset', String(serverOffset)).status(409).end()
+  }
+
+  const output = fs.createWriteStream(chunkPath(uploadId), { flags: 'a' })
+  decodedBody(req).pipe(output)
+  output.on('finish', () => {
+    const newOffset = currentOffset(uploadId)
+    res.set('Upload-Offset', String(newOffset))
+    if (newOffset < length) {
+      return res.status(204).end()
+    }
+
+    const metadata = parseMetadata(req.get('Upload-Metadata'))
+    const fileName = metadata.filename || uploadId
+    delete metadata.filename
+    fs.renameSync(chunkPath(uploadId), path.join('./uploads', fileName))
+    res.status(201).send(JSON.stringify({
+      receivedInfo: {
+        originalFilename: fileName,
+        size: newOffset,
+        headers: req.headers,
+        parameters: metadata
+      }
+    }))
+  })
+}
+
+const partPath = (uploadId, part) => chunkPath(uploadId) + part
+
+const handlePart = (req, res) => {
+  const uploadId = req.get('Upload-Id')
+  const part = parseInt(req.get('Upload-Part'), 10)
+  if (!uploadId || isNaN(part)) {
+    return res.status(400).send('Upload-Id and Upload-Part headers are required')
+  }
+  if (!isValidContentRange(req.get('Content-Range'))) {
+    return res.status(400).send('invalid Content-Range ' + req.get('Content-Range'))
+  }
+
+  const output = fs.createWriteStream(partPath(uploadId, part))
+  decodedBody(req).pipe(output)
+  output.on('finish', () => {
+    const size = fs.statSync(partPath(uploadId, part)).size
+    res.set('ETag', `"${part}-${size}"`).status(200).end()
+  })
+}
+
+const handlePartsCompletion = (req, res) => {
+  const uploadId = req.get('Upload-Id')
+  const length = parseInt(req.get('Upload-Length'), 10)
+  let body = ''
+  const input = decodedBody(req)
+  input.on('data', (data) => { body += data })
+  input.on('end', () => {
+    const parts = JSON.parse(body).parts
+    const missing = parts.filter((part) => !fs.existsSync(partPath(uploadId, part.part)))
+    if (missing.length > 0) {
+      return res.status(409).send(`missing parts ${missing.map((part) => part.part).join(',')}`)
+    }
+
+    const metadata = parseMetadata(req.get('Upload-Metadata'))
+    const fileName = metadata.filename || uploadId
+    delete metadata.filename
+    const target = path.join('./uploads', fileName)
+    fs.writeFileSync(target, Buffer.concat(parts.map((part) => fs.readFileSync(partPath(uploadId, part.part)))))
+    parts.forEach((part) => fs.unlinkSync(partPath(uploadId, part.part)))
+
+    const size = fs.statSync(target).size
+    if (size !== length) {
+      return res.status(400).send(`assembled ${size} bytes instead of ${length}`)
+    }
+    res.status(201).send(JSON.stringify({
+      receivedInfo: {
+        originalFilename: fileName,
+        size: size,
+        parts: parts.length,
+        headers: req.headers,
+        parameters: metadata
+      }
+    }))
+  })
+}
+
+const handleBinaryUpload = (req, res) => {
+  let size = 0
+  const fileName = 'binary-' + Date.now()
+  const body = decodedBody(req)
+  body.on('data', (data) => { size += data.length })
+  body.pipe(fs.createWriteStream(path.join('./uploads', fileName)))
+  body.on('end', () => {
+    res.status(req.method === 'POST' ? 201 : 200).send(JSON.stringify({
+      receivedInfo: {
+        originalFilename: fileName,
+        size: size,
+        headers: req.headers
+      }
+    }))
+  })
+}
+
+// counters for the benchmarks of tests.js, reset on every GET /stats
+let stats = { requests: 0, bytesReceived: 0, since: Date.now() }
+
+const handleDiscard = (req, res) => {
+  stats.requests++
+  req.on('data', (data) => { stats.bytesReceived += data.length })
+  req.on('end', () => res.status(200).send('{}'))
+}
+
+const handleStats = (req, res) => {
+  const current = Object.assign({}, stats, { duration: Date.now() - stats.since })
+  stats = { requests: 0, bytesReceived: 0, since: Date.now() }
+  res.set('Access-Control-Allow-Origin', '*').json(current)
+}
+
+// always fails with a retryable status, for the retry tests of tests.js
+const handleUnavailable = (req, res) => {
+  req.resume()
+  req.on('end', () => res.status(503).end())
 }
 
 const app = express()
 
 app.post('/upload', handleUpload)
 app.put('/upload', handleUpload)
+app.post('/upload/binary', handleBinaryUpload)
+app.put('/upload/binary', handleBinaryUpload)
+app.head('/upload/chunked', handleChunkOffset)
+app.post('/upload/chunked', handleChunk)
+app.put('/upload/parts', handlePart)
+app.post('/upload/parts', handlePartsCompletion)
+app.post('/upload/discard', handleDiscard)
+app.post('/upload/unavailable', handleUnavailable)
+app.get('/stats', handleStats)
 
 app.listen(PORT, () => console.log(`Listening on ${PORT}`))
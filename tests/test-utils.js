@@ -17,6 +17,20 @@ var TestUtils = (function () {
     })
   }
 
+  function createFile (fileName, content) {
+    return new Promise(function (resolve, reject) {
+      window.resolveLocalFileSystemURL(cordova.file.dataDirectory, function (directory) {
+        directory.getFile(fileName, { create: true }, function (fileEntry) {
+          fileEntry.createWriter(function (writer) {
+            writer.onwriteend = function () { resolve(cordova.file.dataDirectory + fileName) }
+            writer.onerror = reject
+            writer.write(new Blob([content]))
+          }, reject)
+        }, reject)
+      }, reject)
+    })
+  }
+
   function deleteFile (fileName) {
     return new Promise(function (resolve, reject) {
       window.resolveLocalFileSystemURL(cordova.file.dataDirectory, function (dir) {
@@ -31,6 +45,7 @@ var TestUtils = (function () {
 
   return {
     copyFileToDataDirectory: copyFileToDataDirectory,
+    createFile: createFile,
     deleteFile: deleteFile
   }
 })()
@@ -1,4 +1,4 @@
-/* global FileTransferManager, TestUtils */
+/* global cordova, FileTransferManager, TestUtils */
 
 exports.defineAutoTests = function () {
   describe('Uploader', function () {
@@ -154,6 +154,162 @@ exports.defineAutoTests = function () {
         })
       })
 
+      it('returns an error if priority is invalid', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          nativeUploader.startUpload({ id: 'priority_err', serverUrl: serverUrl, filePath: path, priority: 'high' }, null, function (result) {
+            expect(result.id).toBe('priority_err')
+            expect(result.error).toBe('priority must be an integer')
+            done()
+          })
+        })
+      })
+
+      it('returns an error if maxCellularSize is invalid', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          nativeUploader.startUpload({ id: 'cellular_err', serverUrl: serverUrl, filePath: path, maxCellularSize: -10 }, null, function (result) {
+            expect(result.id).toBe('cellular_err')
+            expect(result.error).toBe('maxCellularSize must be a positive number')
+            done()
+          })
+        })
+      })
+
+      it('returns an error if uploadMode is invalid', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          nativeUploader.startUpload({ id: 'mode_err', serverUrl: serverUrl, filePath: path, uploadMode: 'form' }, null, function (result) {
+            expect(result.id).toBe('mode_err')
+            expect(result.error).toBe('uploadMode must be either multipart or binary')
+            done()
+          })
+        })
+      })
+
+      it('returns an error if transform options are invalid', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          nativeUploader.startUpload({ id: 'transform_err', serverUrl: serverUrl, filePath: path, transform: { jpegQuality: 120 } }, null, function (result) {
+            expect(result.id).toBe('transform_err')
+            expect(result.error).toBe('transform.jpegQuality must be an integer between 1 and 100')
+            done()
+          })
+        })
+      })
+
+      it('upload success with binary mode', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        nativeUploader = FileTransferManager.init({}, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'binary_id', serverUrl: serverUrl + '/binary', filePath: path, requestMethod: 'PUT', uploadMode: 'binary' })
+          } else if (upload.state === 'UPLOADED') {
+            expect(upload.id).toBe('binary_id')
+            expect(upload.statusCode).toBe(200)
+            var response = JSON.parse(upload.serverResponse)
+            expect(response.receivedInfo.size).toBeGreaterThan(0)
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          }
+        })
+      })
+
+      it('returns an error if contentEncoding is invalid', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          nativeUploader.startUpload({ id: 'encoding_err', serverUrl: serverUrl, filePath: path, contentEncoding: 'zip' }, null, function (result) {
+            expect(result.id).toBe('encoding_err')
+            expect(result.error).toBe('contentEncoding must be either gzip or deflate')
+            done()
+          })
+        })
+      })
+
+      it('returns an error if a content uri would not be readable after a restart', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        nativeUploader = FileTransferManager.init({}, function () {
+          nativeUploader.startUpload({ id: 'content_err', serverUrl: serverUrl, filePath: 'content://com.spoon.backgroundfileupload.missing/file.txt' }, null, function (error) {
+            expect(error).toContain('no persistable read permission')
+            done()
+          })
+        })
+      })
+
+      it('upload success with gzip content encoding', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        nativeUploader = FileTransferManager.init({}, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'gzip_id', serverUrl: serverUrl + '/binary', filePath: path, uploadMode: 'binary', contentEncoding: 'gzip' })
+          } else if (upload.state === 'UPLOADED') {
+            expect(upload.id).toBe('gzip_id')
+            var response = JSON.parse(upload.serverResponse)
+            expect(response.receivedInfo.headers['content-encoding']).toBe('gzip')
+            expect(response.receivedInfo.size).toBeGreaterThan(0)
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          }
+        })
+      })
+
+      it('upload success with gzip content encoding and a bandwidth limit', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        nativeUploader = FileTransferManager.init({ bandwidthLimit: 4 * 1024 * 1024 }, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'gzip_limited_id', serverUrl: serverUrl + '/binary', filePath: path, uploadMode: 'binary', contentEncoding: 'gzip', bandwidthLimit: 1024 * 1024 })
+          } else if (upload.state === 'UPLOADED') {
+            expect(upload.id).toBe('gzip_limited_id')
+            var response = JSON.parse(upload.serverResponse)
+            expect(response.receivedInfo.headers['content-encoding']).toBe('gzip')
+            expect(response.receivedInfo.size).toBeGreaterThan(0)
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          } else if (upload.state === 'FAILED') {
+            fail(upload.error)
+            done()
+          }
+        })
+      })
+
+      it('skips the upload of content already uploaded when deduplicate is set', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        var firstResponse = null
+        nativeUploader = FileTransferManager.init({}, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'dedup_1', serverUrl: serverUrl, filePath: path, deduplicate: true })
+          } else if (upload.state === 'UPLOADED' && upload.id === 'dedup_1') {
+            firstResponse = upload.serverResponse
+            expect(JSON.parse(firstResponse).receivedInfo.headers['upload-content-sha256']).toBeDefined()
+            nativeUploader.acknowledgeEvent(upload.eventId, function () {
+              nativeUploader.startUpload({ id: 'dedup_2', serverUrl: serverUrl, filePath: path, deduplicate: true })
+            })
+          } else if (upload.state === 'UPLOADED' && upload.id === 'dedup_2') {
+            expect(upload.serverResponse).toBe(firstResponse)
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          }
+        })
+      })
+
+      it('does not reuse the response of an upload sent with other parameters', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        var run = String(Date.now())
+        nativeUploader = FileTransferManager.init({}, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'dedup_params_1', serverUrl: serverUrl, filePath: path, deduplicate: true, parameters: { run: run, kind: 'original' } })
+          } else if (upload.state === 'UPLOADED' && upload.id === 'dedup_params_1') {
+            nativeUploader.acknowledgeEvent(upload.eventId, function () {
+              nativeUploader.startUpload({ id: 'dedup_params_2', serverUrl: serverUrl, filePath: path, deduplicate: true, parameters: { run: run, kind: 'thumbnail' } })
+            })
+          } else if (upload.state === 'UPLOADED' && upload.id === 'dedup_params_2') {
+            expect(JSON.parse(upload.serverResponse).receivedInfo.parameters.kind).toBe('thumbnail')
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          }
+        })
+      })
+
       it('sends headers during upload', function (done) {
         var headers = { signature: 'secret_hash', source: 'test' }
         nativeUploader = FileTransferManager.init({}, function (upload) {
@@ -199,6 +355,87 @@ exports.defineAutoTests = function () {
         })
       })
 
+      it('returns an error if chunkSize is invalid', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          nativeUploader.startUpload({ id: 'chunk_err', serverUrl: serverUrl, filePath: path, chunkSize: -1 }, null, function (result) {
+            expect(result.id).toBe('chunk_err')
+            expect(result.error).toBe('chunkSize must be a positive number')
+            done()
+          })
+        })
+      })
+
+      it('uploads a file in chunks', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        nativeUploader = FileTransferManager.init({}, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'chunked_id', serverUrl: serverUrl + '/chunked', filePath: path, chunkSize: 16 * 1024, parameters: { role: 'tester' } })
+          } else if (upload.state === 'UPLOADED') {
+            expect(upload.id).toBe('chunked_id')
+            expect(upload.statusCode).toBe(201)
+            var response = JSON.parse(upload.serverResponse)
+            expect(response.receivedInfo.originalFilename).toBe(sampleFile)
+            expect(response.receivedInfo.parameters).toEqual({ role: 'tester' })
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          }
+        })
+      })
+
+      it('uploads an empty file in chunks', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        TestUtils.createFile('empty.txt', '').then(function (emptyPath) {
+          nativeUploader = FileTransferManager.init({}, function (upload) {
+            if (upload.state === 'INITIALIZED') {
+              nativeUploader.startUpload({ id: 'chunked_empty_id', serverUrl: serverUrl + '/chunked', filePath: emptyPath, chunkSize: 16 * 1024 })
+            } else if (upload.state === 'UPLOADED') {
+              expect(upload.id).toBe('chunked_empty_id')
+              expect(upload.statusCode).toBe(201)
+              var response = JSON.parse(upload.serverResponse)
+              expect(response.receivedInfo.size).toBe(0)
+              expect(response.receivedInfo.headers['content-range']).toBe('bytes */0')
+              nativeUploader.acknowledgeEvent(upload.eventId, function () {
+                TestUtils.deleteFile('empty.txt').then(done)
+              })
+            } else if (upload.state === 'FAILED') {
+              fail(upload.error)
+              TestUtils.deleteFile('empty.txt').then(done)
+            }
+          })
+        })
+      })
+
+      it('returns an error if parallelParts is given without chunkSize', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          nativeUploader.startUpload({ id: 'parts_err', serverUrl: serverUrl, filePath: path, parallelParts: 4 }, null, function (result) {
+            expect(result.id).toBe('parts_err')
+            expect(result.error).toBe('parallelParts requires chunkSize')
+            done()
+          })
+        })
+      })
+
+      it('uploads the parts of a file in parallel', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        nativeUploader = FileTransferManager.init({}, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'parts_id', serverUrl: serverUrl + '/parts', filePath: path, chunkSize: 16 * 1024, parallelParts: 3 })
+          } else if (upload.state === 'UPLOADED') {
+            expect(upload.id).toBe('parts_id')
+            expect(upload.statusCode).toBe(201)
+            var response = JSON.parse(upload.serverResponse)
+            expect(response.receivedInfo.originalFilename).toBe(sampleFile)
+            expect(response.receivedInfo.parts).toBeGreaterThan(1)
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          }
+        })
+      })
+
       it('sends a FAILED callback if file does not exist', function (done) {
         nativeUploader = FileTransferManager.init({}, function (upload) {
           if (upload.state === 'INITIALIZED') {
@@ -253,6 +490,226 @@ exports.defineAutoTests = function () {
       })
     })
 
+    describe('Priority', function () {
+      var sampleFile2 = 'tree2.jpg'; var path2 = ''
+
+      beforeEach(function (done) {
+        TestUtils.copyFileToDataDirectory(sampleFile2).then(function (newPath2) {
+          path2 = newPath2
+          done()
+        })
+      })
+
+      afterEach(function (done) {
+        TestUtils.deleteFile(sampleFile2).then(done)
+      })
+
+      it('starts the upload with the highest priority first', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        var uploadedFiles = []
+        nativeUploader = FileTransferManager.init({ parallelUploadsLimit: 1 }, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUploads([
+              { id: 'low_priority', serverUrl: serverUrl, filePath: path, priority: 0 },
+              { id: 'high_priority', serverUrl: serverUrl, filePath: path2, priority: 10 }
+            ])
+          } else if (upload.state === 'UPLOADED') {
+            uploadedFiles.push(upload.id)
+            nativeUploader.acknowledgeEvent(upload.eventId, function () {
+              if (uploadedFiles.length >= 2) {
+                expect(uploadedFiles).toEqual(['high_priority', 'low_priority'])
+                done()
+              }
+            })
+          }
+        })
+      })
+    })
+
+    describe('Waiting uploads', function () {
+      it('starts an upload while more than maxWaitingUploads uploads wait for a retry', function (done) {
+        if (window.cordova.platformId !== 'android') { return done() }
+        var blockedIds = ['blocked_1', 'blocked_2', 'blocked_3']
+        nativeUploader = FileTransferManager.init({ maxWaitingUploads: 2, maxRetries: 3, retryInitialDelay: 600000 }, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUploads(blockedIds.map(function (id) {
+              return { id: id, serverUrl: serverUrl + '/unavailable', filePath: path }
+            }))
+            // the failed attempts put the blocked uploads back in the waiting list
+            setTimeout(function () {
+              nativeUploader.startUpload({ id: 'startable', serverUrl: serverUrl, filePath: path })
+            }, 5000)
+          } else if (upload.state === 'UPLOADED') {
+            expect(upload.id).toBe('startable')
+            blockedIds.forEach(function (id) { nativeUploader.removeUpload(id) })
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          } else if (upload.state === 'FAILED' && upload.eventId) {
+            nativeUploader.acknowledgeEvent(upload.eventId)
+          }
+        })
+      })
+    })
+
+    describe('Batch upload', function () {
+      var sampleFile2 = 'tree2.jpg'; var path2 = ''
+
+      beforeEach(function (done) {
+        TestUtils.copyFileToDataDirectory(sampleFile2).then(function (newPath2) {
+          path2 = newPath2
+          done()
+        })
+      })
+
+      afterEach(function (done) {
+        TestUtils.deleteFile(sampleFile2).then(done)
+      })
+
+      it('should have startUploads function', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          expect(nativeUploader.startUploads).toBeDefined()
+          done()
+        })
+      })
+
+      it('returns an error if no array is given', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          nativeUploader.startUploads(null, null, function (result) {
+            expect(result.error).toBe('Upload Settings array is missing or has invalid arguments')
+            done()
+          })
+        })
+      })
+
+      it('reports invalid payloads individually', function (done) {
+        nativeUploader = FileTransferManager.init({}, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUploads([{ id: 'batch_invalid', filePath: path }], null, function (result) {
+              expect(result.id).toBe('batch_invalid')
+              expect(result.error).toBe('Server URL is required')
+              done()
+            })
+          }
+        })
+      })
+
+      it('uploads every file of the batch', function (done) {
+        var filesToUpload = ['batch_1', 'batch_2']
+        var uploadedFiles = []
+        nativeUploader = FileTransferManager.init({ parallelUploadsLimit: 2 }, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUploads([
+              { id: filesToUpload[0], serverUrl: serverUrl, filePath: path },
+              { id: filesToUpload[1], serverUrl: serverUrl, filePath: path2 }
+            ])
+          } else if (upload.state === 'UPLOADED') {
+            expect(filesToUpload).toContain(upload.id)
+            if (uploadedFiles.indexOf(upload.id) < 0) {
+              uploadedFiles.push(upload.id)
+              nativeUploader.acknowledgeEvent(upload.eventId, function () {
+                if (uploadedFiles.length >= 2) done()
+              })
+            }
+          }
+        })
+      })
+    })
+
+    describe('Bundling', function () {
+      var sampleFile2 = 'tree2.jpg'; var path2 = ''
+
+      beforeEach(function (done) {
+        TestUtils.copyFileToDataDirectory(sampleFile2).then(function (newPath2) {
+          path2 = newPath2
+          done()
+        })
+      })
+
+      afterEach(function (done) {
+        TestUtils.deleteFile(sampleFile2).then(done)
+      })
+
+      it('sends small files in a single request', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        var uploadedFiles = []
+        nativeUploader = FileTransferManager.init({ bundleSmallFiles: true, bundleFileSizeLimit: 10 * 1024 * 1024, bundleMaxSize: 20 * 1024 * 1024 }, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUploads([
+              { id: 'bundle_1', serverUrl: serverUrl, filePath: path },
+              { id: 'bundle_2', serverUrl: serverUrl, filePath: path2 }
+            ])
+          } else if (upload.state === 'UPLOADED') {
+            var response = JSON.parse(upload.serverResponse)
+            expect(response.receivedInfo.headers['upload-bundle']).toBe('bundle_1,bundle_2')
+            uploadedFiles.push(upload.id)
+            nativeUploader.acknowledgeEvent(upload.eventId, function () {
+              if (uploadedFiles.length === 2) {
+                expect(uploadedFiles).toContain('bundle_1')
+                expect(uploadedFiles).toContain('bundle_2')
+                done()
+              }
+            })
+          }
+        })
+      })
+
+      it('starts the other uploads of a bundle again when its first upload is removed', function (done) {
+        if (window.cordova.platformId !== 'android') {
+          return done()
+        }
+        var removed = false
+        nativeUploader = FileTransferManager.init({ bundleSmallFiles: true, bundleFileSizeLimit: 10 * 1024 * 1024, bundleMaxSize: 20 * 1024 * 1024 }, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUploads([
+              { id: 'bundle_leader', serverUrl: serverUrl, filePath: path },
+              { id: 'bundle_member', serverUrl: serverUrl, filePath: path2 }
+            ])
+          } else if (upload.state === 'UPLOADING' && !removed) {
+            removed = true
+            nativeUploader.removeUpload('bundle_leader')
+          } else if (upload.state === 'FAILED') {
+            expect(upload.id).toBe('bundle_leader')
+            expect(upload.errorCode).toBe(-999)
+            nativeUploader.acknowledgeEvent(upload.eventId)
+          } else if (upload.state === 'UPLOADED') {
+            expect(upload.id).toBe('bundle_member')
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          }
+        })
+      })
+    })
+
+    describe('Bandwidth limit', function () {
+      it('returns an error if a negative limit is given', function (done) {
+        nativeUploader = FileTransferManager.init({}, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.setBandwidthLimit(-1, null, function (result) {
+              expect(result.error).toBe('bandwidth limit must be a positive number')
+              done()
+            })
+          }
+        })
+      })
+
+      it('does not upload faster than the limit', function (done) {
+        if (window.cordova.platformId !== 'android') { return done() }
+        var limit = 64 * 1024
+        nativeUploader = FileTransferManager.init({ attachMetrics: true }, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'limited_upload', serverUrl: serverUrl, filePath: path, bandwidthLimit: limit })
+          } else if (upload.state === 'UPLOADED') {
+            expect(upload.id).toBe('limited_upload')
+            // the bucket lets a quarter of a second through at once
+            expect(upload.metrics.averageRate).toBeLessThan(limit * 1.5)
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          }
+        })
+      })
+    })
+
     describe('Remove upload', function () {
       it('should have removeUpload function', function (done) {
         nativeUploader = FileTransferManager.init({}, function () {
@@ -309,6 +766,33 @@ exports.defineAutoTests = function () {
       })
     })
 
+    describe('Stats', function () {
+      it('should have getStats function', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          expect(nativeUploader.getStats).toBeDefined()
+          done()
+        })
+      })
+
+      it('attaches metrics to the UPLOADED event and counts the upload', function (done) {
+        if (window.cordova.platformId !== 'android') { return done() }
+        nativeUploader = FileTransferManager.init({ attachMetrics: true }, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'metrics_upload', serverUrl: serverUrl, filePath: path })
+          } else if (upload.state === 'UPLOADED') {
+            expect(upload.metrics.bytesSent).toBeGreaterThan(0)
+            expect(upload.metrics.retries).toBe(0)
+            nativeUploader.getStats(function (stats) {
+              expect(stats.totals.uploaded).toBeGreaterThan(0)
+              expect(stats.histograms.duration.count).toBeGreaterThan(0)
+              expect(stats.queue.inFlight).toBeDefined()
+              nativeUploader.acknowledgeEvent(upload.eventId, done)
+            })
+          }
+        })
+      })
+    })
+
     describe('Acknowledge event', function () {
       it('should have acknowledgeEvent function', function (done) {
         nativeUploader = FileTransferManager.init({}, function () {
@@ -348,6 +832,33 @@ exports.defineAutoTests = function () {
         })
       })
 
+      it('should have acknowledgeEvents function', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          expect(nativeUploader.acknowledgeEvents).toBeDefined()
+          done()
+        })
+      })
+
+      it('returns an error if no eventIds are given', function (done) {
+        nativeUploader = FileTransferManager.init({}, function () {
+          nativeUploader.acknowledgeEvents([], null, function (result) {
+            expect(result.error).toBe('Event IDs are required')
+            done()
+          })
+        })
+      })
+
+      it('does not return error if eventIds are given', function (done) {
+        nativeUploader = FileTransferManager.init({}, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.acknowledgeEvents(['x-coredata://123/UploadEvent/p1', 'x-coredata://123/UploadEvent/p2'], function () {
+              expect(true).toBeTruthy()
+              done()
+            }, null)
+          }
+        })
+      })
+
       it('persist event id until it is acknowledged', function (done) {
         nativeUploader = FileTransferManager.init({}, function (upload1) {
           if (upload1.state === 'INITIALIZED') {
@@ -364,6 +875,257 @@ exports.defineAutoTests = function () {
           }
         })
       })
+
+      it('truncates server responses larger than maxEventResponseSize', function (done) {
+        if (window.cordova.platformId !== 'android') { return done() }
+        nativeUploader = FileTransferManager.init({ maxEventResponseSize: 10 }, function (upload) {
+          if (upload.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'truncated_response', serverUrl: serverUrl, filePath: path })
+          } else if (upload.state === 'UPLOADED') {
+            expect(upload.serverResponse.length).toBe(10)
+            expect(upload.serverResponseTruncated).toBe(true)
+            nativeUploader.acknowledgeEvent(upload.eventId, done)
+          }
+        })
+      })
+
+      it('keeps only the latest event of an upload', function (done) {
+        if (window.cordova.platformId !== 'android') { return done() }
+        var uploads = 0
+        nativeUploader = FileTransferManager.init({}, function (upload1) {
+          if (upload1.state === 'INITIALIZED') {
+            nativeUploader.startUpload({ id: 'compacted', serverUrl: serverUrl, filePath: path })
+          } else if (upload1.state === 'UPLOADED' && ++uploads === 1) {
+            nativeUploader.startUpload({ id: 'compacted', serverUrl: serverUrl, filePath: path })
+          } else if (upload1.state === 'UPLOADED') {
+            nativeUploader.destroy()
+            var replayed = []
+            nativeUploader = FileTransferManager.init({}, function (upload2) {
+              if (upload2.state === 'INITIALIZED') {
+                setTimeout(function () {
+                  expect(replayed).toEqual([upload1.eventId])
+                  nativeUploader.acknowledgeEvent(upload1.eventId, done)
+                }, 1000)
+              } else if (upload2.id === 'compacted') {
+                replayed.push(upload2.eventId)
+              }
+            })
+          }
+        })
+      })
     })
   })
 }
+
+exports.defineManualTests = function (contentEl, createActionButton) {
+  // benchmarks of the upload engine, run on demand against tests/test-server
+  var serverHost = window.cordova.platformId === 'android' ? '10.0.2.2' : 'localhost'
+  var discardUrl = 'http://' + serverHost + ':3000/upload/discard'
+  var statsUrl = 'http://' + serverHost + ':3000/stats'
+  var uploader
+
+  var log = function (message) {
+    console.log('[benchmark] ' + message)
+    var line = document.createElement('div')
+    line.textContent = message
+    contentEl.appendChild(line)
+  }
+
+  var wait = function (millis) {
+    return new Promise(function (resolve) { setTimeout(resolve, millis) })
+  }
+
+  var createFile = function (fileName, size) {
+    return new Promise(function (resolve, reject) {
+      window.resolveLocalFileSystemURL(cordova.file.dataDirectory, function (directory) {
+        directory.getFile(fileName, { create: true }, function (fileEntry) {
+          fileEntry.createWriter(function (writer) {
+            writer.onwriteend = function () { resolve(cordova.file.dataDirectory + fileName) }
+            writer.onerror = reject
+            writer.write(new Blob([new Uint8Array(size)]))
+          }, reject)
+        }, reject)
+      }, reject)
+    })
+  }
+
+  var getStats = function () {
+    return new Promise(function (resolve) {
+      // getStats is only implemented on Android
+      uploader.getStats(resolve, function () { resolve(null) })
+    })
+  }
+
+  var serverStats = function () {
+    return window.fetch(statsUrl).then(function (response) { return response.json() })
+  }
+
+  var createPayloads = function (prefix, count, filePath) {
+    var payloads = []
+    for (var i = 0; i < count; i++) {
+      payloads.push({ id: prefix + i, serverUrl: discardUrl, filePath: filePath })
+    }
+    return payloads
+  }
+
+  // uploads count copies of filePath and resolves with the timings of the run once all of them finished,
+  // with no filePath the uploads already stored under prefix are waited for, as they are replayed on init
+  var runUploads = function (name, options, count, filePath, prefix) {
+    prefix = prefix || name + '_' + Date.now() + '_'
+    var payloads = filePath ? createPayloads(prefix, count, filePath) : []
+
+    return serverStats().then(function () {
+      return new Promise(function (resolve) {
+        var run = { failed: 0, progressEvents: 0 }
+        var finished = 0
+        var eventIds = []
+        var acknowledge = function () {
+          if (eventIds.length > 0) {
+            uploader.acknowledgeEvents(eventIds.splice(0))
+          }
+        }
+
+        // a replay starts with the service, before the INITIALIZED event
+        run.initAt = Date.now()
+        uploader = FileTransferManager.init(Object.assign({}, options), function (event) {
+          if (event.state === 'INITIALIZED') {
+            getStats().then(function (stats) {
+              run.statsBefore = stats
+              run.startedAt = Date.now()
+              if (payloads.length === 0) {
+                run.enqueuedAt = run.startedAt
+                return
+              }
+              uploader.startUploads(payloads, function () { run.enqueuedAt = Date.now() })
+            })
+            return
+          }
+          if (event.eventId) {
+            eventIds.push(event.eventId)
+          }
+          if (!event.id || event.id.indexOf(prefix) !== 0) {
+            return acknowledge()
+          }
+          run.firstEventAt = run.firstEventAt || Date.now()
+          if (event.state !== 'UPLOADED' && event.state !== 'FAILED') {
+            run.progressEvents += event.state === 'UPLOADING' ? 1 : 0
+            return
+          }
+          run.failed += event.state === 'FAILED' ? 1 : 0
+          finished++
+          if (eventIds.length >= 100 || finished === count) {
+            acknowledge()
+          }
+          if (finished === count) {
+            run.finishedAt = Date.now()
+            Promise.all([getStats(), serverStats()]).then(function (results) {
+              run.statsAfter = results[0]
+              run.server = results[1]
+              uploader.destroy()
+              // lets the service stop so that the next run starts it with its own options
+              return wait(2000)
+            }).then(function () { resolve(run) })
+          }
+        })
+      })
+    })
+  }
+
+  var report = function (label, run, count) {
+    var seconds = (run.finishedAt - run.startedAt) / 1000
+    log(label + ': ' + count + ' uploads, ' + run.failed + ' failed, enqueued in ' + (run.enqueuedAt - run.startedAt) + ' ms, ' +
+      'first event after ' + (run.firstEventAt - run.startedAt) + ' ms, ' + (count / seconds).toFixed(1) + ' uploads/s, ' +
+      (run.server.bytesReceived / seconds / 1024).toFixed(0) + ' KB/s received by the server')
+    if (run.progressEvents > 0) {
+      log(label + ': ' + run.progressEvents + ' progress events, ' + (run.progressEvents / seconds).toFixed(1) + ' events/s')
+    }
+    if (run.statsBefore && run.statsAfter) {
+      // the histograms cover the whole life of the service, only the uploads of this run are kept
+      var runMean = function (name) {
+        var before = run.statsBefore.histograms[name]
+        var after = run.statsAfter.histograms[name]
+        var count = after.count - before.count
+        return count > 0 ? Math.round((after.sum - before.sum) / count) : 0
+      }
+      log(label + ': mean wait ' + runMean('waitTime') + ' ms, mean time to first byte ' + runMean('timeToFirstByte') + ' ms, mean duration ' + runMean('duration') + ' ms')
+      if (run.statsAfter.runtime.bytesAllocated >= 0) {
+        var allocated = run.statsAfter.runtime.bytesAllocated - run.statsBefore.runtime.bytesAllocated
+        log(label + ': ' + (allocated / seconds / 1024).toFixed(0) + ' KB/s allocated, ' +
+          (run.statsAfter.runtime.gcCount - run.statsBefore.runtime.gcCount) + ' GCs')
+      }
+    }
+  }
+
+  var sequence = function (steps) {
+    return steps.reduce(function (previous, step) { return previous.then(step) }, Promise.resolve())
+  }
+
+  contentEl.innerHTML = '<div id="benchmark_actions"></div><p>Start tests/test-server before running a benchmark.</p>'
+
+  createActionButton('Enqueue throughput (1000 uploads)', function () {
+    createFile('benchmark_1k.bin', 1024).then(function (filePath) {
+      return runUploads('enqueue', { parallelUploadsLimit: 4 }, 1000, filePath)
+    }).then(function (run) { report('enqueue', run, 1000) }).catch(log)
+  }, 'benchmark_actions')
+
+  createActionButton('Pending backlog (1k and 10k uploads)', function () {
+    createFile('benchmark_1k.bin', 1024).then(function (filePath) {
+      return sequence([1000, 10000].map(function (count) {
+        return function () {
+          return runUploads('backlog', { parallelUploadsLimit: 4 }, count, filePath).then(function (run) { report('backlog ' + count, run, count) })
+        }
+      }))
+    }).catch(log)
+  }, 'benchmark_actions')
+
+  // the uploads are stored with a global limit of 1 byte per second, so that none of them finishes before the app is stopped
+  createActionButton('Replay (1): store 1k or 10k uploads, then force stop the app', function () {
+    var count = window.localStorage.getItem('benchmark_replay_count') === '1000' ? 10000 : 1000
+    var prefix = 'replay_' + Date.now() + '_'
+    createFile('benchmark_1k.bin', 1024).then(function (filePath) {
+      uploader = FileTransferManager.init({ parallelUploadsLimit: 4, bandwidthLimit: 1 }, function (event) {
+        if (event.state !== 'INITIALIZED') {
+          return
+        }
+        uploader.startUploads(createPayloads(prefix, count, filePath), function () {
+          window.localStorage.setItem('benchmark_replay_prefix', prefix)
+          window.localStorage.setItem('benchmark_replay_count', String(count))
+          log('replay: ' + count + ' uploads stored, force stop the app (adb shell am force-stop <package>) then run Replay (2)')
+        }, log)
+      })
+    }).catch(log)
+  }, 'benchmark_actions')
+
+  createActionButton('Replay (2): time the replay after the restart', function () {
+    var prefix = window.localStorage.getItem('benchmark_replay_prefix')
+    var count = Number(window.localStorage.getItem('benchmark_replay_count'))
+    if (!prefix) {
+      return log('replay: run Replay (1) first')
+    }
+    window.localStorage.removeItem('benchmark_replay_prefix')
+    runUploads('replay', { parallelUploadsLimit: 4 }, count, null, prefix).then(function (run) {
+      log('replay ' + count + ': first event ' + (run.firstEventAt - run.initAt) + ' ms after init')
+      report('replay ' + count, run, count)
+    }).catch(log)
+  }, 'benchmark_actions')
+
+  createActionButton('Progress events by progressInterval (1000, 250, 50 ms)', function () {
+    createFile('benchmark_16m.bin', 16 * 1024 * 1024).then(function (filePath) {
+      return sequence([1000, 250, 50].map(function (interval) {
+        return function () {
+          return runUploads('progress', { parallelUploadsLimit: 4, progressInterval: interval }, 8, filePath).then(function (run) { report('progressInterval ' + interval, run, 8) })
+        }
+      }))
+    }).catch(log)
+  }, 'benchmark_actions')
+
+  createActionButton('Throughput by parallelUploadsLimit (1, 2, 4)', function () {
+    createFile('benchmark_4m.bin', 4 * 1024 * 1024).then(function (filePath) {
+      return sequence([1, 2, 4].map(function (limit) {
+        return function () {
+          return runUploads('throughput', { parallelUploadsLimit: limit }, 8, filePath).then(function (run) { report('parallelUploadsLimit ' + limit, run, 8) })
+        }
+      }))
+    }).catch(log)
+  }, 'benchmark_actions')
+}
@@ -12,28 +12,184 @@ var FileTransferManager = function (options, callback) {
   }
 
   this.callback = callback
-  exec(this.callback, null, 'FileTransferBackground', 'initManager', [this.options])
+  exec(function (event) {
+    // several events can be delivered in a single batch
+    if (Array.isArray(event)) {
+      event.forEach(function (batchedEvent) { callback(batchedEvent) })
+    } else {
+      callback(event)
+    }
+  }, null, 'FileTransferBackground', 'initManager', [this.options])
 }
 
 FileTransferManager.prototype.startUpload = function (payload, successCb, errorCb) {
+  var error = validatePayload(payload)
+  if (error) {
+    return errorCb ? errorCb(error) : null
+  }
+
+  resolvePayloadFile(payload, function () {
+    exec(successCb, errorCb, 'FileTransferBackground', 'startUpload', [payload])
+  }, errorCb)
+}
+
+FileTransferManager.prototype.startUploads = function (payloads, successCb, errorCb) {
+  if (!Array.isArray(payloads)) {
+    return errorCb ? errorCb({ state: 'FAILED', error: 'Upload Settings array is missing or has invalid arguments' }) : null
+  }
+
+  // files are resolved asynchronously, results are kept by index so that the batch keeps the order of the caller
+  var resolvedPayloads = new Array(payloads.length)
+  var remaining = payloads.length
+  var onPayloadDone = function () {
+    remaining--
+    if (remaining > 0) {
+      return
+    }
+    var batch = resolvedPayloads.filter(function (payload) { return payload !== undefined })
+    if (batch.length === 0) {
+      return successCb ? successCb() : null
+    }
+    exec(successCb, errorCb, 'FileTransferBackground', 'startUploads', [batch])
+  }
+
+  if (remaining === 0) {
+    return successCb ? successCb() : null
+  }
+
+  payloads.forEach(function (payload, index) {
+    var error = validatePayload(payload)
+    if (error) {
+      if (typeof errorCb === 'function') { errorCb(error) }
+      return onPayloadDone()
+    }
+
+    resolvePayloadFile(payload, function () {
+      resolvedPayloads[index] = payload
+      onPayloadDone()
+    }, function (error) {
+      if (typeof errorCb === 'function') { errorCb(error) }
+      onPayloadDone()
+    })
+  })
+}
+
+FileTransferManager.prototype.removeUpload = function (id, successCb, errorCb) {
+  if (!id) {
+    if (errorCb) {
+      errorCb({ error: 'Upload ID is required' })
+    }
+  } else {
+    exec(successCb, errorCb, 'FileTransferBackground', 'removeUpload', [id])
+  }
+}
+
+FileTransferManager.prototype.acknowledgeEvent = function (id, successCb, errorCb) {
+  if (!id) {
+    if (errorCb) {
+      errorCb({ error: 'Event ID is required' })
+    }
+  } else {
+    exec(successCb, errorCb, 'FileTransferBackground', 'acknowledgeEvent', [id])
+  }
+}
+
+FileTransferManager.prototype.acknowledgeEvents = function (ids, successCb, errorCb) {
+  if (!Array.isArray(ids) || ids.length === 0) {
+    if (errorCb) {
+      errorCb({ error: 'Event IDs are required' })
+    }
+  } else {
+    exec(successCb, errorCb, 'FileTransferBackground', 'acknowledgeEvents', [ids])
+  }
+}
+
+FileTransferManager.prototype.setBandwidthLimit = function (bytesPerSecond, successCb, errorCb) {
+  if (!(bytesPerSecond >= 0)) {
+    if (errorCb) {
+      errorCb({ error: 'bandwidth limit must be a positive number' })
+    }
+  } else {
+    exec(successCb, errorCb, 'FileTransferBackground', 'setBandwidthLimit', [bytesPerSecond])
+  }
+}
+
+FileTransferManager.prototype.getStats = function (successCb, errorCb) {
+  exec(successCb, errorCb, 'FileTransferBackground', 'getStats', [])
+}
+
+FileTransferManager.prototype.destroy = function (successCb, errorCb) {
+  this.callback = null
+  exec(successCb, errorCb, 'FileTransferBackground', 'destroy', [])
+}
+
+function validatePayload (payload) {
   if (!payload) {
-    return errorCb ? errorCb({ state: 'FAILED', error: 'Upload Settings object is missing or has invalid arguments' }) : null
+    return { state: 'FAILED', error: 'Upload Settings object is missing or has invalid arguments' }
   }
 
   if (!payload.id) {
-    return errorCb ? errorCb({ state: 'FAILED', error: 'Upload ID is required' }) : null
+    return { state: 'FAILED', error: 'Upload ID is required' }
   }
 
   if (!payload.serverUrl) {
-    return errorCb ? errorCb({ id: payload.id, state: 'FAILED', error: 'Server URL is required' }) : null
+    return { id: payload.id, state: 'FAILED', error: 'Server URL is required' }
   }
 
   if (payload.serverUrl.trim() === '') {
-    return errorCb ? errorCb({ id: payload.id, state: 'FAILED', error: 'Invalid server URL' }) : null
+    return { id: payload.id, state: 'FAILED', error: 'Invalid server URL' }
   }
 
   if (!payload.filePath) {
-    return errorCb ? errorCb({ id: payload.id, state: 'FAILED', error: 'filePath is required' }) : null
+    return { id: payload.id, state: 'FAILED', error: 'filePath is required' }
+  }
+
+  if (payload.chunkSize !== undefined && !(payload.chunkSize > 0)) {
+    return { id: payload.id, state: 'FAILED', error: 'chunkSize must be a positive number' }
+  }
+
+  if (payload.parallelParts !== undefined && !(Number.isInteger(payload.parallelParts) && payload.parallelParts > 0)) {
+    return { id: payload.id, state: 'FAILED', error: 'parallelParts must be a positive integer' }
+  }
+
+  if (payload.parallelParts > 1 && payload.chunkSize === undefined) {
+    return { id: payload.id, state: 'FAILED', error: 'parallelParts requires chunkSize' }
+  }
+
+  if (payload.priority !== undefined && !Number.isInteger(payload.priority)) {
+    return { id: payload.id, state: 'FAILED', error: 'priority must be an integer' }
+  }
+
+  if (payload.maxCellularSize !== undefined && !(payload.maxCellularSize >= 0)) {
+    return { id: payload.id, state: 'FAILED', error: 'maxCellularSize must be a positive number' }
+  }
+
+  if (payload.bandwidthLimit !== undefined && !(payload.bandwidthLimit >= 0)) {
+    return { id: payload.id, state: 'FAILED', error: 'bandwidthLimit must be a positive number' }
+  }
+
+  if (payload.uploadMode && ['multipart', 'binary'].indexOf(payload.uploadMode) < 0) {
+    return { id: payload.id, state: 'FAILED', error: 'uploadMode must be either multipart or binary' }
+  }
+
+  if (payload.contentEncoding && ['gzip', 'deflate'].indexOf(payload.contentEncoding) < 0) {
+    return { id: payload.id, state: 'FAILED', error: 'contentEncoding must be either gzip or deflate' }
+  }
+
+  if (payload.deduplicate !== undefined && typeof payload.deduplicate !== 'boolean') {
+    return { id: payload.id, state: 'FAILED', error: 'deduplicate must be a boolean' }
+  }
+
+  if (payload.transform !== undefined) {
+    if (typeof payload.transform !== 'object' || payload.transform === null) {
+      return { id: payload.id, state: 'FAILED', error: 'transform must be an object' }
+    }
+    if (payload.transform.maxDimension !== undefined && !(Number.isInteger(payload.transform.maxDimension) && payload.transform.maxDimension > 0)) {
+      return { id: payload.id, state: 'FAILED', error: 'transform.maxDimension must be a positive integer' }
+    }
+    if (payload.transform.jpegQuality !== undefined && !(Number.isInteger(payload.transform.jpegQuality) && payload.transform.jpegQuality >= 1 && payload.transform.jpegQuality <= 100)) {
+      return { id: payload.id, state: 'FAILED', error: 'transform.jpegQuality must be an integer between 1 and 100' }
+    }
   }
 
   if (!payload.fileKey) {
@@ -54,39 +210,23 @@ FileTransferManager.prototype.startUpload = function (payload, successCb, errorC
     payload.requestMethod = 'POST'
   }
 
+  return null
+}
+
+function resolvePayloadFile (payload, successCb, errorCb) {
+  // content:// uris are streamed by the native side through the ContentResolver, which only exists on Android
+  if (window.cordova.platformId === 'android' && payload.filePath.indexOf('content://') === 0) {
+    return successCb()
+  }
+
   window.resolveLocalFileSystemURL(payload.filePath, function (entry) {
     payload.filePath = entry.toURL().replace('file://', '')
-    exec(successCb, errorCb, 'FileTransferBackground', 'startUpload', [payload])
+    successCb()
   }, function () {
     if (typeof errorCb === 'function') { errorCb({ id: payload.id, state: 'FAILED', error: 'File not found: ' + payload.filePath }) }
   })
 }
 
-FileTransferManager.prototype.removeUpload = function (id, successCb, errorCb) {
-  if (!id) {
-    if (errorCb) {
-      errorCb({ error: 'Upload ID is required' })
-    }
-  } else {
-    exec(successCb, errorCb, 'FileTransferBackground', 'removeUpload', [id])
-  }
-}
-
-FileTransferManager.prototype.acknowledgeEvent = function (id, successCb, errorCb) {
-  if (!id) {
-    if (errorCb) {
-      errorCb({ error: 'Event ID is required' })
-    }
-  } else {
-    exec(successCb, errorCb, 'FileTransferBackground', 'acknowledgeEvent', [id])
-  }
-}
-
-FileTransferManager.prototype.destroy = function (successCb, errorCb) {
-  this.callback = null
-  exec(successCb, errorCb, 'FileTransferBackground', 'destroy', [])
-}
-
 module.exports = {
   init: function (options, cb) {
     return new FileTransferManager(options || {}, cb)